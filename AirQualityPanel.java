@@ -3,13 +3,42 @@ package climate.client;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.swing.text.BadLocationException;
 import org.jfree.chart.*;
 import org.jfree.chart.plot.*;
 import org.jfree.data.time.*;
 import org.jfree.data.xy.*;
 
 public class AirQualityPanel extends JPanel {
+    // Readings are buffered off the EDT and drawn at this rate, however fast they arrive.
+    private static final int FLUSH_INTERVAL_MILLIS = 100;
+    private static final int MAX_BUFFERED_READINGS = 4096;
+    private static final long SERIES_MAX_AGE_MILLIS = 15 * 60 * 1000;
+    private static final int SERIES_MAX_ITEMS = 10000;
+    private static final int MAX_LOG_LINES = 200;
+    
+    private static class Sample {
+        final long time;
+        final float co2;
+        final float no2;
+        final float pm25;
+        
+        Sample(long time, float co2, float no2, float pm25) {
+            this.time = time;
+            this.co2 = co2;
+            this.no2 = no2;
+            this.pm25 = pm25;
+        }
+    }
+    
     private final ClimateControlGUI parent;
+    private final BlockingQueue<Sample> buffered = new ArrayBlockingQueue<>(MAX_BUFFERED_READINGS);
+    private final Timer flushTimer = new Timer(FLUSH_INTERVAL_MILLIS, e -> flush());
     private JButton startMonitoringBtn;
     private JButton stopMonitoringBtn;
     private JComboBox<String> locationCombo;
@@ -50,12 +79,19 @@ public class AirQualityPanel extends JPanel {
         readingArea = new JTextArea(5, 40);
         readingArea.setEditable(false);
         add(new JScrollPane(readingArea), BorderLayout.SOUTH);
+        
+        flushTimer.start();
     }
     
     private void createChart() {
         co2Series = new TimeSeries("CO₂ (ppm)");
         no2Series = new TimeSeries("NO₂ (ppb)");
         pm25Series = new TimeSeries("PM2.5 (µg/m³)");
+        for (TimeSeries series : new TimeSeries[]{co2Series, no2Series, pm25Series}) {
+            // Age is counted in the series' periods, which are milliseconds here.
+            series.setMaximumItemAge(SERIES_MAX_AGE_MILLIS);
+            series.setMaximumItemCount(SERIES_MAX_ITEMS);
+        }
         
         TimeSeriesCollection dataset = new TimeSeriesCollection();
         dataset.addSeries(co2Series);
@@ -103,18 +139,52 @@ public class AirQualityPanel extends JPanel {
         
     }
     
+    /** Safe to call from any thread; the reading is drawn on the next frame. */
     public void updateReading(float co2, float no2, float pm25) {
-        SwingUtilities.invokeLater(() -> {
-            // Update chart
-            Millisecond now = new Millisecond();
-            co2Series.addOrUpdate(now, co2);
-            no2Series.addOrUpdate(now, no2);
-            pm25Series.addOrUpdate(now, pm25);
-            
-            
-            readingArea.append(String.format(
-                "[%tT] CO₂: %.1f ppm, NO₂: %.1f ppb, PM2.5: %.1f µg/m³\n",
-                new Date(), co2, no2, pm25));
-        });
+        Sample sample = new Sample(System.currentTimeMillis(), co2, no2, pm25);
+        // If the EDT falls behind, drop the oldest readings rather than grow without bound.
+        while (!buffered.offer(sample)) {
+            buffered.poll();
+        }
+    }
+    
+    private void flush() {
+        List<Sample> samples = new ArrayList<>();
+        buffered.drainTo(samples);
+        if (samples.isEmpty()) {
+            return;
+        }
+        
+        // One chart redraw per frame instead of one per series per reading.
+        chart.setNotify(false);
+        TimeSeries[] allSeries = {co2Series, no2Series, pm25Series};
+        for (TimeSeries series : allSeries) {
+            series.setNotify(false);
+        }
+        for (Sample sample : samples) {
+            Millisecond time = new Millisecond(new Date(sample.time));
+            co2Series.addOrUpdate(time, sample.co2);
+            no2Series.addOrUpdate(time, sample.no2);
+            pm25Series.addOrUpdate(time, sample.pm25);
+        }
+        for (TimeSeries series : allSeries) {
+            series.setNotify(true);
+        }
+        chart.setNotify(true);
+        
+        StringBuilder lines = new StringBuilder();
+        for (Sample sample : samples.subList(Math.max(0, samples.size() - MAX_LOG_LINES), samples.size())) {
+            lines.append(String.format("[%tT] CO₂: %.1f ppm, NO₂: %.1f ppb, PM2.5: %.1f µg/m³\n",
+                sample.time, sample.co2, sample.no2, sample.pm25));
+        }
+        readingArea.append(lines.toString());
+        int excess = readingArea.getLineCount() - 1 - MAX_LOG_LINES;
+        if (excess > 0) {
+            try {
+                readingArea.replaceRange("", 0, readingArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException e) {
+                readingArea.setText("");
+            }
+        }
     }
 }
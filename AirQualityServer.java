@@ -1,20 +1,35 @@
 package climate.airquality;
 
+import climate.discovery.LoadReporter;
+import climate.discovery.ServiceDiscovery;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AirQualityServer {
+    // Below ChannelManager's 30s client keepalive, so its pings are never answered with a GOAWAY.
+    private static final long PERMIT_KEEPALIVE_SECONDS = 20;
     private Server server;
     private final int port;
     private final String serviceType = "_airquality._tcp.local.";
     private final String serviceName = "AirQualityMonitorService";
+    private ServiceDiscovery discovery;
+    private ServiceDiscovery.Registration registration;
+    private final LoadReporter loadReporter =
+        new LoadReporter(Collections.singletonMap("description", "Air Quality Monitoring Service"));
 
     public AirQualityServer(int port) {
         this.port = port;
@@ -22,11 +37,13 @@ public class AirQualityServer {
 
     public void start() throws IOException {
         server = ServerBuilder.forPort(port)
-                .addService(new AirQualityMonitorImpl())
+                .permitKeepAliveTime(PERMIT_KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+                .permitKeepAliveWithoutCalls(true)
+                .addService(ServerInterceptors.intercept(new AirQualityMonitorImpl(), loadReporter))
                 .build()
                 .start();
         
-        registerWithJmDNS();
+        registerService();
         
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.err.println("Shutting down gRPC server");
@@ -38,20 +55,29 @@ public class AirQualityServer {
         }));
     }
 
-    private void stop() throws InterruptedException {
+    public void stop() throws InterruptedException {
+        // Unregister first so clients stop picking this instance while it drains.
+        loadReporter.shutdown();
+        if (registration != null) {
+            registration.unregister();
+            try {
+                discovery.shutdown();
+            } catch (IOException e) {
+                System.err.println("Could not shut down service discovery: " + e.getMessage());
+            }
+        }
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
     }
 
-    private void registerWithJmDNS() {
+    private void registerService() {
         try {
-            JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-            ServiceInfo serviceInfo = ServiceInfo.create(serviceType, serviceName, port, "Air Quality Monitoring Service");
-            jmdns.registerService(serviceInfo);
-            System.out.println("Registered service with jmDNS: " + serviceInfo);
+            discovery = ServiceDiscovery.create();
+            registration = discovery.register(serviceType, serviceName, port, loadReporter.properties());
+            loadReporter.start(registration);
         } catch (IOException e) {
-            System.err.println("Could not register with jmDNS: " + e.getMessage());
+            System.err.println("Could not register service: " + e.getMessage());
         }
     }
 
@@ -62,17 +88,34 @@ public class AirQualityServer {
     }
 
     static class AirQualityMonitorImpl extends AirQualityMonitorGrpc.AirQualityMonitorImplBase {
+        private static final int READINGS_PER_STREAM = 20;
+        private static final int MAX_RETAINED_READINGS = 3600;
+        private static final long READY_POLL_MILLIS = 10;
+        
         private final Random random = new Random();
+        private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+        private final Map<String, Deque<AirQualityReading>> retained = new ConcurrentHashMap<>();
 
         @Override
         public void streamAirQuality(SensorRequest request, StreamObserver<AirQualityReading> responseObserver) {
+            ServerCallStreamObserver<AirQualityReading> call =
+                (ServerCallStreamObserver<AirQualityReading>) responseObserver;
             try {
                 String location = request.getLocation();
                 System.out.println("Starting air quality stream for location: " + location);
                 
+                if (request.getSinceSequence() > 0 || request.getSinceTimestamp() > 0) {
+                    for (AirQualityReading reading :
+                            readingsSince(location, request.getSinceSequence(), request.getSinceTimestamp())) {
+                        if (!awaitReady(call)) {
+                            return;
+                        }
+                        call.onNext(reading);
+                    }
+                }
            
-                for (int i = 0; i < 20; i++) {
-                    if (responseObserver.isCancelled()) {
+                for (int i = 0; i < READINGS_PER_STREAM; i++) {
+                    if (call.isCancelled()) {
                         return;
                     }
                     
@@ -81,16 +124,63 @@ public class AirQualityServer {
                             .setNo2(random.nextFloat() * 50)        
                             .setPm25(random.nextFloat() * 35)    
                             .setTimestamp(String.valueOf(System.currentTimeMillis()))
+                            .setSequence(sequences.computeIfAbsent(location, l -> new AtomicLong()).incrementAndGet())
                             .build();
+                    retain(location, reading);
                     
-                    responseObserver.onNext(reading);
+                    call.onNext(reading);
                     Thread.sleep(1000); 
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } finally {
-                responseObserver.onCompleted();
+                if (!call.isCancelled()) {
+                    call.onCompleted();
+                }
+            }
+        }
+        
+        // The onReady handler cannot run while this call's thread is blocked here, so readiness is polled.
+        private static boolean awaitReady(ServerCallStreamObserver<?> call) throws InterruptedException {
+            while (!call.isReady()) {
+                if (call.isCancelled()) {
+                    return false;
+                }
+                Thread.sleep(READY_POLL_MILLIS);
+            }
+            return !call.isCancelled();
+        }
+        
+        private void retain(String location, AirQualityReading reading) {
+            Deque<AirQualityReading> readings = retained.computeIfAbsent(location, l -> new ArrayDeque<>());
+            synchronized (readings) {
+                readings.addLast(reading);
+                if (readings.size() > MAX_RETAINED_READINGS) {
+                    readings.removeFirst();
+                }
+            }
+        }
+        
+        /** Retained readings after a resume point, oldest first; see EnhancedAirQualityMonitor for the rule. */
+        private List<AirQualityReading> readingsSince(String location, long sinceSequence, long sinceTimestamp) {
+            Deque<AirQualityReading> readings = retained.get(location);
+            if (readings == null) {
+                return Collections.emptyList();
+            }
+            List<AirQualityReading> newer = new ArrayList<>();
+            synchronized (readings) {
+                for (AirQualityReading reading : readings) {
+                    long timestamp = Long.parseLong(reading.getTimestamp());
+                    boolean alreadySeen = sinceTimestamp > 0
+                        ? timestamp < sinceTimestamp
+                            || timestamp == sinceTimestamp && reading.getSequence() <= sinceSequence
+                        : reading.getSequence() <= sinceSequence;
+                    if (!alreadySeen) {
+                        newer.add(reading);
+                    }
+                }
             }
+            return newer;
         }
     }
 
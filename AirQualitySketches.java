@@ -0,0 +1,92 @@
+package climate.airquality;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hourly quantile sketches per location and metric, kept for the last eight
+ * days in a ring that reuses its slots, so each location holds at most a fixed
+ * number of sketches. A slot's sketches are only allocated once an hour in it
+ * sees a reading, so locations that report rarely stay small. Percentile
+ * queries merge the sketches of every hour and location they cover; queries
+ * over every location read a site-wide ring fed with every reading instead,
+ * so they cost the same however many locations report.
+ */
+public class AirQualitySketches {
+    public static final int RETAINED_HOURS = 8 * 24;
+    private static final long HOUR_MILLIS = 3600 * 1000L;
+
+    public enum Metric { CO2, NO2, PM25 }
+
+    private final Map<String, LocationSketches> byLocation = new ConcurrentHashMap<>();
+    private final LocationSketches allLocations = new LocationSketches();
+
+    private static class LocationSketches {
+        private final long[] hours = new long[RETAINED_HOURS];
+        private final QuantileSketch[][] sketches = new QuantileSketch[RETAINED_HOURS][];  // null until first used
+
+        LocationSketches() {
+            Arrays.fill(hours, Long.MIN_VALUE);
+        }
+
+        synchronized void add(long hour, AirQualityReading reading) {
+            int slot = (int) Math.floorMod(hour, (long) RETAINED_HOURS);
+            if (hours[slot] != hour) {
+                if (hours[slot] > hour) {
+                    return;  // older than anything still retained
+                }
+                if (sketches[slot] == null) {
+                    sketches[slot] = new QuantileSketch[Metric.values().length];
+                    for (int m = 0; m < sketches[slot].length; m++) {
+                        sketches[slot][m] = new QuantileSketch();
+                    }
+                } else {
+                    for (QuantileSketch sketch : sketches[slot]) {
+                        sketch.clear();
+                    }
+                }
+                hours[slot] = hour;
+            }
+            sketches[slot][Metric.CO2.ordinal()].add(reading.getCo2());
+            sketches[slot][Metric.NO2.ordinal()].add(reading.getNo2());
+            sketches[slot][Metric.PM25.ordinal()].add(reading.getPm25());
+        }
+
+        synchronized void mergeInto(QuantileSketch target, Metric metric, long fromHour, long toHour) {
+            for (int slot = 0; slot < RETAINED_HOURS; slot++) {
+                if (hours[slot] >= fromHour && hours[slot] < toHour) {
+                    target.merge(sketches[slot][metric.ordinal()]);
+                }
+            }
+        }
+    }
+
+    public void add(String location, long timestamp, AirQualityReading reading) {
+        long hour = Math.floorDiv(timestamp, HOUR_MILLIS);
+        byLocation.computeIfAbsent(location, k -> new LocationSketches()).add(hour, reading);
+        allLocations.add(hour, reading);
+    }
+
+    /**
+     * Merges the sketches of the given locations for the hours overlapping
+     * {@code [from, to)}; an empty collection means every location.
+     */
+    public QuantileSketch merged(Collection<String> locations, Metric metric, long from, long to) {
+        long fromHour = Math.floorDiv(from, HOUR_MILLIS);
+        long toHour = -Math.floorDiv(-to, HOUR_MILLIS);
+        QuantileSketch merged = new QuantileSketch();
+        if (locations.isEmpty()) {
+            allLocations.mergeInto(merged, metric, fromHour, toHour);
+            return merged;
+        }
+        for (String location : locations) {
+            LocationSketches sketches = byLocation.get(location);
+            if (sketches != null) {
+                sketches.mergeInto(merged, metric, fromHour, toHour);
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,54 @@
+package climate.client;
+
+import climate.thermostat.SmartThermostatGrpc;
+import climate.thermostat.TempRequest;
+import climate.thermostat.TempResponse;
+import io.grpc.Channel;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking thermostat calls. Each call carries its own deadline and
+ * returns a future, so nothing here ever waits on the caller's thread.
+ * SetTemperature is deliberately not hedged (see {@link ClientServiceConfig}).
+ */
+public class AsyncThermostatClient {
+    static final long SET_TEMPERATURE_DEADLINE_MILLIS = 2000;
+
+    private final SmartThermostatGrpc.SmartThermostatStub stub;
+
+    public AsyncThermostatClient(Channel channel) {
+        this.stub = SmartThermostatGrpc.newStub(channel);
+    }
+
+    public CompletableFuture<TempResponse> setTemperature(String room, float desiredTemp) {
+        TempRequest request = TempRequest.newBuilder()
+            .setRoom(room)
+            .setDesiredTemp(desiredTemp)
+            .build();
+        CompletableFuture<TempResponse> result = new CompletableFuture<>();
+        stub.withDeadlineAfter(SET_TEMPERATURE_DEADLINE_MILLIS, TimeUnit.MILLISECONDS)
+            .setTemperature(request, completing(result));
+        return result;
+    }
+
+    static <T> StreamObserver<T> completing(CompletableFuture<T> future) {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                future.complete(value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                // A unary call has already delivered its response.
+            }
+        };
+    }
+}
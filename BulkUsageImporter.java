@@ -0,0 +1,595 @@
+package climate.emissions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads historical usage files straight into the usage store. The file is read
+ * in fixed-size blocks cut at record boundaries, blocks are parsed in parallel
+ * into columns, and each block's usage is summed per device type and hour
+ * before it reaches the aggregates. Only a fixed number of blocks are in
+ * flight at once, so buffers do not grow with the file's size.
+ *
+ * <p>Parsed columns, about 20 bytes a row as the store keeps them anyway, are
+ * held back until the whole file has parsed, and only then published to the
+ * store and the aggregates. A failed import leaves nothing behind, so it can
+ * simply be retried.
+ *
+ * <p>CSV rows are {@code device_type,duration_hours,power_rating_kw,timestamp_millis}
+ * with any further columns ignored; protobuf files hold length-delimited
+ * {@code UsageEntry} messages. Both are parsed in place, without allocating
+ * per row.
+ */
+public class BulkUsageImporter {
+    private static final int BLOCK_BYTES = 4 << 20;
+    private static final int CHUNK_ROWS = 4096;
+    private static final int NAME_CACHE_SLOTS = 256;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+        1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    public enum Format { CSV, DELIMITED_PROTO }
+
+    /** Receives usage summed per device type and hour, once the file has parsed, from the importing thread. */
+    public interface HourlyUsageSink {
+        void add(String deviceType, long hourStart, double kwh);
+    }
+
+    public static class Result {
+        final long imported;
+        final long rejected;
+
+        Result(long imported, long rejected) {
+            this.imported = imported;
+            this.rejected = rejected;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+    }
+
+    private final UsageStore store;
+    private final HourlyUsageSink sink;
+    private final ExecutorService workers;
+    private final int blocksInFlight;
+
+    public BulkUsageImporter(UsageStore store, HourlyUsageSink sink, int threads) {
+        this.store = store;
+        this.sink = sink;
+        this.workers = Executors.newFixedThreadPool(threads);
+        this.blocksInFlight = Math.max(2, threads * 2);
+    }
+
+    public Result importFile(Path path, Format format) throws IOException {
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(blocksInFlight);
+        for (int i = 0; i < blocksInFlight; i++) {
+            buffers.add(new byte[BLOCK_BYTES]);
+        }
+        AtomicLong imported = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Queue<BlockParser> staged = new ConcurrentLinkedQueue<>();
+
+        byte[] block = take(buffers);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int length = 0;
+            boolean eof = false;
+            while (!eof) {
+                ByteBuffer target = ByteBuffer.wrap(block, length, block.length - length);
+                while (target.hasRemaining()) {
+                    if (channel.read(target) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                length = target.position();
+
+                int boundary = format == Format.CSV
+                    ? (eof ? length : lastLineEnd(block, length))
+                    : lastFrameEnd(block, length);
+                if (boundary == 0 && length == block.length) {
+                    throw new IOException("Record larger than " + BLOCK_BYTES + " bytes in " + path);
+                }
+                if (eof && boundary < length) {
+                    throw new IOException("Truncated record at end of " + path);
+                }
+
+                // The partial record at the end moves to the next block before this one is handed off.
+                byte[] next = take(buffers);
+                int carried = length - boundary;
+                System.arraycopy(block, boundary, next, 0, carried);
+                byte[] parsed = block;
+                int parsedLength = boundary;
+                block = next;
+                length = carried;
+                try {
+                    workers.execute(() -> {
+                        try {
+                            BlockParser parser = new BlockParser();
+                            if (format == Format.CSV) {
+                                parser.parseCsv(parsed, parsedLength);
+                            } else {
+                                parser.parseDelimited(parsed, parsedLength);
+                            }
+                            parser.finish();
+                            staged.add(parser);
+                            imported.addAndGet(parser.imported);
+                            rejected.addAndGet(parser.rejected);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            buffers.add(parsed);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    buffers.add(parsed);
+                    throw new IOException("Importer has been shut down", e);
+                }
+            }
+        } finally {
+            // Wait for every block still being parsed, so none is committed or still adding to staged afterwards.
+            buffers.add(block);
+            for (int i = 0; i < blocksInFlight; i++) {
+                take(buffers);
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Failed to import " + path, failure.get());
+        }
+        for (BlockParser parser : staged) {
+            parser.commit();
+        }
+        return new Result(imported.get(), rejected.get());
+    }
+
+    /**
+     * Stops taking new blocks; imports still running fail with an IOException.
+     * Blocks already queued are still parsed, since each returns a buffer the
+     * importing thread waits for.
+     */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private static byte[] take(BlockingQueue<byte[]> buffers) throws InterruptedIOException {
+        try {
+            return buffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while importing");
+        }
+    }
+
+    private static int lastLineEnd(byte[] buf, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buf[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int lastFrameEnd(byte[] buf, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            long varint = readLength(buf, pos, length);
+            if (varint < 0) {
+                break;
+            }
+            if ((varint >>> 3) > BLOCK_BYTES) {
+                throw new IOException("Record of " + (varint >>> 3) + " bytes is larger than " + BLOCK_BYTES);
+            }
+            // A long, so a corrupt length near Integer.MAX_VALUE cannot wrap to a small position.
+            long end = pos + (varint & 7) + (varint >>> 3);
+            if (end > length) {
+                break;
+            }
+            pos = (int) end;
+        }
+        return pos;
+    }
+
+    // Returns the message length shifted left by 3 with the varint's size in the low bits, or -1 if incomplete.
+    private static long readLength(byte[] buf, int pos, int limit) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 5; i++) {
+            if (pos + i >= limit) {
+                return -1;
+            }
+            byte b = buf[pos + i];
+            value |= (long) (b & 0x7f) << (7 * i);
+            if (b >= 0) {
+                if (value > Integer.MAX_VALUE) {
+                    break;
+                }
+                return value << 3 | (i + 1);
+            }
+        }
+        throw new IOException("Corrupt record length at offset " + pos + " of block");
+    }
+
+    /** Columns parsed from one block, waiting for the import to succeed. */
+    private static final class Columns {
+        final int size;
+        final int[] codes;
+        final long[] timestamps;
+        final float[] durations;
+        final float[] powers;
+
+        Columns(int size, int[] codes, long[] timestamps, float[] durations, float[] powers) {
+            this.size = size;
+            this.codes = codes;
+            this.timestamps = timestamps;
+            this.durations = durations;
+            this.powers = powers;
+        }
+    }
+
+    /**
+     * Parses one block into store chunks and hourly sums, confined to a single
+     * worker, and keeps them until {@link #commit} publishes them.
+     */
+    private class BlockParser {
+        long imported;
+        long rejected;
+
+        private final List<Columns> chunks = new ArrayList<>();
+        private int size = 0;
+        private int[] codes = new int[CHUNK_ROWS];
+        private long[] timestamps = new long[CHUNK_ROWS];
+        private float[] durations = new float[CHUNK_ROWS];
+        private float[] powers = new float[CHUNK_ROWS];
+
+        // Open-addressed (device code, hour) -> kWh; -1 marks an empty slot.
+        private long[] groupKeys = newGroupKeys(1024);
+        private double[] groupKwh = new double[1024];
+        private int groups = 0;
+
+        private final byte[][] cachedNames = new byte[NAME_CACHE_SLOTS][];
+        private final int[] cachedCodes = new int[NAME_CACHE_SLOTS];
+
+        void parseCsv(byte[] buf, int length) {
+            int pos = 0;
+            while (pos < length) {
+                int end = pos;
+                while (end < length && buf[end] != '\n') {
+                    end++;
+                }
+                int lineEnd = end > pos && buf[end - 1] == '\r' ? end - 1 : end;
+                if (lineEnd > pos && !isHeader(buf, pos, lineEnd)) {
+                    parseCsvRow(buf, pos, lineEnd);
+                }
+                pos = end + 1;
+            }
+        }
+
+        private void parseCsvRow(byte[] buf, int from, int to) {
+            int c1 = indexOf(buf, ',', from, to);
+            int c2 = indexOf(buf, ',', c1 + 1, to);
+            int c3 = indexOf(buf, ',', c2 + 1, to);
+            if (c1 < 0 || c2 < 0 || c3 < 0) {
+                rejected++;
+                return;
+            }
+            int c4 = indexOf(buf, ',', c3 + 1, to);
+
+            float duration = parseFloat(buf, c1 + 1, c2);
+            float power = parseFloat(buf, c2 + 1, c3);
+            long timestamp = parseLong(buf, c3 + 1, c4 < 0 ? to : c4);
+            if (Float.isNaN(duration) || Float.isNaN(power) || timestamp == Long.MIN_VALUE) {
+                rejected++;
+                return;
+            }
+            append(deviceCode(buf, from, c1), timestamp, duration, power);
+        }
+
+        void parseDelimited(byte[] buf, int length) {
+            int pos = 0;
+            while (pos < length) {
+                long varint;
+                try {
+                    varint = readLength(buf, pos, length);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);  // boundaries were already validated by the reader
+                }
+                int start = pos + (int) (varint & 7);
+                pos = start + (int) (varint >>> 3);
+                if (!parseEntry(buf, start, pos)) {
+                    rejected++;
+                }
+            }
+        }
+
+        /*
+         * Reads a UsageEntry's fields off the wire in place rather than building
+         * the message, so a row allocates nothing. Returns false for a malformed
+         * message or one without a valid timestamp. Unknown fields are skipped
+         * and a repeated field's last value wins, as protobuf parsing does.
+         */
+        private boolean parseEntry(byte[] buf, int from, int to) {
+            int typeFrom = from;
+            int typeTo = from;
+            int timestampFrom = from;
+            int timestampTo = from;
+            float duration = 0;
+            float power = 0;
+            int pos = from;
+            try {
+                while (pos < to) {
+                    long tag = readLength(buf, pos, to);
+                    if (tag < 0 || tag >>> 6 == 0) {
+                        return false;
+                    }
+                    pos += (int) (tag & 7);
+                    long field = tag >>> 6;
+                    switch ((int) (tag >>> 3) & 7) {
+                        case 0:  // varint
+                            pos = skipVarint(buf, pos, to);
+                            break;
+                        case 1:  // 64-bit
+                            pos += 8;
+                            break;
+                        case 2: {  // length-delimited
+                            long length = readLength(buf, pos, to);
+                            if (length < 0) {
+                                return false;
+                            }
+                            int start = pos + (int) (length & 7);
+                            long end = start + (length >>> 3);
+                            if (end > to) {
+                                return false;
+                            }
+                            if (field == 1) {
+                                typeFrom = start;
+                                typeTo = (int) end;
+                            } else if (field == 4) {
+                                timestampFrom = start;
+                                timestampTo = (int) end;
+                            }
+                            pos = (int) end;
+                            break;
+                        }
+                        case 5:  // 32-bit
+                            if (pos + 4 > to) {
+                                return false;
+                            }
+                            if (field == 2) {
+                                duration = readFloat(buf, pos);
+                            } else if (field == 3) {
+                                power = readFloat(buf, pos);
+                            }
+                            pos += 4;
+                            break;
+                        default:
+                            return false;
+                    }
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            long millis = parseLong(buf, timestampFrom, timestampTo);
+            if (pos != to || millis == Long.MIN_VALUE) {
+                return false;
+            }
+            append(deviceCode(buf, typeFrom, typeTo), millis, duration, power);
+            return true;
+        }
+
+        private void append(int code, long timestamp, float duration, float power) {
+            codes[size] = code;
+            timestamps[size] = timestamp;
+            durations[size] = duration;
+            powers[size] = power;
+            if (++size == CHUNK_ROWS) {
+                stage();
+            }
+            addToGroup(code, Math.floorDiv(timestamp, EmissionRollups.HOUR_MILLIS), (double) duration * power);
+            imported++;
+        }
+
+        private void stage() {
+            chunks.add(new Columns(size, Arrays.copyOf(codes, size), Arrays.copyOf(timestamps, size),
+                Arrays.copyOf(durations, size), Arrays.copyOf(powers, size)));
+            size = 0;
+        }
+
+        private void addToGroup(int code, long hour, double kwh) {
+            long key = (long) code << 32 | (hour & 0xffffffffL);
+            int mask = groupKeys.length - 1;
+            int slot = (int) mix(key) & mask;
+            while (groupKeys[slot] != -1 && groupKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (groupKeys[slot] == -1) {
+                groupKeys[slot] = key;
+                if (++groups * 2 > groupKeys.length) {
+                    groupKwh[slot] = kwh;
+                    growGroups();
+                    return;
+                }
+            }
+            groupKwh[slot] += kwh;
+        }
+
+        private void growGroups() {
+            long[] oldKeys = groupKeys;
+            double[] oldKwh = groupKwh;
+            groupKeys = newGroupKeys(oldKeys.length * 2);
+            groupKwh = new double[oldKeys.length * 2];
+            int mask = groupKeys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1) {
+                    int slot = (int) mix(oldKeys[i]) & mask;
+                    while (groupKeys[slot] != -1) {
+                        slot = (slot + 1) & mask;
+                    }
+                    groupKeys[slot] = oldKeys[i];
+                    groupKwh[slot] = oldKwh[i];
+                }
+            }
+        }
+
+        void finish() {
+            if (size > 0) {
+                stage();
+            }
+        }
+
+        /** Hands the block's columns to the store and its hourly sums to the sink, once the whole file has parsed. */
+        void commit() {
+            for (Columns chunk : chunks) {
+                store.appendColumns(chunk.size, chunk.codes, chunk.timestamps, chunk.durations, chunk.powers);
+            }
+            for (int i = 0; i < groupKeys.length; i++) {
+                if (groupKeys[i] != -1) {
+                    int code = (int) (groupKeys[i] >>> 32);
+                    long hour = (int) groupKeys[i];
+                    sink.add(store.deviceType(code), hour * EmissionRollups.HOUR_MILLIS, groupKwh[i]);
+                }
+            }
+        }
+
+        // Meter files repeat a handful of device types, so names are decoded once per block.
+        private int deviceCode(byte[] buf, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + buf[i];
+            }
+            int slot = (hash ^ hash >>> 16) & (NAME_CACHE_SLOTS - 1);
+            byte[] cached = cachedNames[slot];
+            if (cached != null && Arrays.equals(cached, 0, cached.length, buf, from, to)) {
+                return cachedCodes[slot];
+            }
+            int code = store.encode(new String(buf, from, to - from, StandardCharsets.UTF_8));
+            cachedNames[slot] = Arrays.copyOfRange(buf, from, to);
+            cachedCodes[slot] = code;
+            return code;
+        }
+    }
+
+    private static long[] newGroupKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, -1);
+        return keys;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        return key ^ key >>> 33;
+    }
+
+    // Returns the position after the varint at pos; the varint's value is not needed.
+    private static int skipVarint(byte[] buf, int pos, int limit) throws IOException {
+        for (int i = 0; i < 10 && pos + i < limit; i++) {
+            if (buf[pos + i] >= 0) {
+                return pos + i + 1;
+            }
+        }
+        throw new IOException("Corrupt varint at offset " + pos + " of block");
+    }
+
+    private static float readFloat(byte[] buf, int pos) {
+        return Float.intBitsToFloat((buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8
+            | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24);
+    }
+
+    private static boolean isHeader(byte[] buf, int from, int to) {
+        byte[] header = "device_type".getBytes(StandardCharsets.ISO_8859_1);
+        return to - from >= header.length && Arrays.equals(header, 0, header.length, buf, from, from + header.length);
+    }
+
+    private static int indexOf(byte[] buf, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Plain decimals are parsed in place; anything else (exponents, padding) falls back to the JDK.
+    private static float parseFloat(byte[] buf, int from, int to) {
+        int i = from;
+        boolean negative = i < to && buf[i] == '-';
+        if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+            i++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < to; i++) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9' && mantissa < 100_000_000_000_000_000L / 10 && scale < 18) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits = true;
+                if (dot) {
+                    scale++;
+                }
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else {
+                return slowParseFloat(buf, from, to);
+            }
+        }
+        if (!digits) {
+            return Float.NaN;
+        }
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return (float) (negative ? -value : value);
+    }
+
+    private static float slowParseFloat(byte[] buf, int from, int to) {
+        try {
+            return Float.parseFloat(new String(buf, from, to - from, StandardCharsets.ISO_8859_1).trim());
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    /** Returns {@code Long.MIN_VALUE} when the field is not an integer of at most 18 digits. */
+    private static long parseLong(byte[] buf, int from, int to) {
+        int i = from;
+        boolean negative = i < to && buf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == to || to - i > 18) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            byte b = buf[i];
+            if (b < '0' || b > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+}
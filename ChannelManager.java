@@ -0,0 +1,219 @@
+package climate.client;
+
+import climate.discovery.DiscoveryNameResolverProvider;
+import climate.discovery.ServiceDiscovery;
+import climate.discovery.WeightedLeastLoadedLoadBalancerProvider;
+import io.grpc.ConnectivityState;
+import io.grpc.LoadBalancerRegistry;
+import io.grpc.ManagedChannel;
+import io.grpc.NameResolverRegistry;
+import io.grpc.netty.NettyChannelBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One channel per target, shared by everything that talks to it. Channels are
+ * reference counted through {@link Lease}s and closed a little while after
+ * the last lease is released, so reconnecting to the same endpoint reuses the
+ * open connection. Every channel runs on the same event loop group and
+ * callback executor, so thread count does not grow with the number of
+ * channels or reconnects. A client process should use the one {@link #shared}
+ * instance, so that its parts reach each service over the same channel.
+ */
+public class ChannelManager {
+    private static final long KEEPALIVE_SECONDS = 30;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 10;
+    private static final long IDLE_TIMEOUT_MINUTES = 5;
+    private static final long LINGER_SECONDS = 30;
+    private static final long SHUTDOWN_GRACE_SECONDS = 5;
+
+    private static ChannelManager shared;
+    private static ServiceDiscovery discovery;
+
+    private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(2, daemonThreads("grpc-client-io"));
+    private final ExecutorService executor = Executors.newFixedThreadPool(4, daemonThreads("grpc-client"));
+    private final Map<String, Entry> channels = new HashMap<>();
+    private boolean shutdown;
+
+    private static class Entry {
+        final ManagedChannel channel;
+        int leases;
+        ScheduledFuture<?> pendingClose;
+
+        Entry(ManagedChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** A hold on a shared channel; close it when done instead of shutting the channel down. */
+    public class Lease implements AutoCloseable {
+        private final String target;
+        private final Entry entry;
+        private boolean closed;
+
+        Lease(String target, Entry entry) {
+            this.target = target;
+            this.entry = entry;
+        }
+
+        public ManagedChannel getChannel() {
+            return entry.channel;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ChannelManager.this) {
+                if (!closed) {
+                    closed = true;
+                    release(target, entry);
+                }
+            }
+        }
+    }
+
+    /** The process-wide manager, created on first use and shut down when the JVM exits. */
+    public static synchronized ChannelManager shared() {
+        if (shared == null) {
+            ChannelManager manager = new ChannelManager();
+            Runtime.getRuntime().addShutdownHook(new Thread(manager::shutdown, "channel-manager-shutdown"));
+            shared = manager;
+        }
+        return shared;
+    }
+
+    /**
+     * The process-wide discovery behind {@link DiscoveryNameResolverProvider#target}
+     * targets. The first call creates it and registers the name resolver over it
+     * and the load-aware balancer with gRPC, so both are registered once per
+     * process however many clients it starts.
+     */
+    public static synchronized ServiceDiscovery discovery() throws IOException {
+        if (discovery == null) {
+            ServiceDiscovery created = ServiceDiscovery.create();
+            NameResolverRegistry.getDefaultRegistry().register(new DiscoveryNameResolverProvider(created));
+            LoadBalancerRegistry.getDefaultRegistry().register(new WeightedLeastLoadedLoadBalancerProvider());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    created.shutdown();
+                } catch (IOException e) {
+                    System.err.println("Failed to stop service discovery: " + e.getMessage());
+                }
+            }, "service-discovery-shutdown"));
+            discovery = created;
+        }
+        return discovery;
+    }
+
+    public Lease acquire(String host, int port) {
+        // IPv6 literals are bracketed so their colons are not read as the port separator.
+        if (host.indexOf(':') >= 0 && !host.startsWith("[")) {
+            host = "[" + host.replace("%", "%25") + "]";  // a zone id's % must be escaped in the authority
+        }
+        return acquire(host + ":" + port);
+    }
+
+    public synchronized Lease acquire(String target) {
+        if (shutdown) {
+            throw new IllegalStateException("Channel manager is shut down");
+        }
+        Entry entry = channels.get(target);
+        if (entry == null || entry.channel.getState(false) == ConnectivityState.SHUTDOWN) {
+            entry = new Entry(build(target));
+            channels.put(target, entry);
+        }
+        if (entry.pendingClose != null) {
+            entry.pendingClose.cancel(false);
+            entry.pendingClose = null;
+        }
+        entry.leases++;
+        return new Lease(target, entry);
+    }
+
+    /** Shuts every channel down, waiting briefly for calls in progress, then the shared threads. */
+    public void shutdown() {
+        List<ManagedChannel> open = new ArrayList<>();
+        synchronized (this) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            for (Entry entry : channels.values()) {
+                open.add(entry.channel.shutdown());
+            }
+            channels.clear();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_GRACE_SECONDS);
+        try {
+            for (ManagedChannel channel : open) {
+                if (!channel.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    channel.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            open.forEach(ManagedChannel::shutdownNow);
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        eventLoopGroup.shutdownGracefully(0, SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void release(String target, Entry entry) {
+        if (--entry.leases > 0 || shutdown) {
+            return;
+        }
+        // Linger so a quick reconnect to the same endpoint finds the channel still open.
+        entry.pendingClose = eventLoopGroup.schedule(() -> {
+            synchronized (ChannelManager.this) {
+                if (entry.leases == 0 && channels.get(target) == entry) {
+                    channels.remove(target);
+                    entry.channel.shutdown();
+                }
+            }
+        }, LINGER_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private ManagedChannel build(String target) {
+        NettyChannelBuilder builder = NettyChannelBuilder.forTarget(target)
+            .eventLoopGroup(eventLoopGroup)
+            .channelType(NioSocketChannel.class)
+            .executor(executor)
+            .keepAliveTime(KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+            .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .idleTimeout(IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+            .defaultServiceConfig(ClientServiceConfig.get())
+            .enableRetry()
+            .usePlaintext();
+        if (target.startsWith(DiscoveryNameResolverProvider.SCHEME + ":")) {
+            try {
+                discovery();  // makes sure the scheme is registered before the channel resolves it
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not start service discovery", e);
+            }
+            builder.defaultLoadBalancingPolicy(WeightedLeastLoadedLoadBalancerProvider.POLICY_NAME);
+        }
+        return builder.build();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
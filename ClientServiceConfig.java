@@ -0,0 +1,105 @@
+package climate.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default gRPC service config for client channels. Every unary method gets a
+ * timeout, so a call made without its own deadline cannot hang; streams are
+ * long-lived by design and get none. Cheap read-only queries are also
+ * hedged: if the first attempt has not answered within the hedging delay a
+ * second goes out, usually to another replica, and whichever answers first
+ * wins. GetEmissionTrends is not, since its scans regularly run past the
+ * delay and a hedge would only double the work.
+ *
+ * <p>Writes are not hedged. Attempts of the same call may land in either
+ * order, so two SetTemperature calls in quick succession could leave the
+ * earlier setpoint in place. They are retried on UNAVAILABLE instead, one
+ * attempt after another: every write sets absolute state, so applying one
+ * twice leaves the same result.
+ */
+final class ClientServiceConfig {
+    static final String HEDGING_DELAY = "0.075s";
+    static final String QUERY_TIMEOUT = "5s";
+    static final String WRITE_TIMEOUT = "5s";
+    static final String IMPORT_TIMEOUT = "1800s";
+    static final String RETRY_INITIAL_BACKOFF = "0.1s";
+    static final String RETRY_MAX_BACKOFF = "1s";
+    private static final double MAX_ATTEMPTS = 3;
+
+    private static final String[][] HEDGED_QUERIES = {
+        {"airquality.AirQualityMonitor", "GetHistoricalData"},
+        {"airquality.AirQualityMonitor", "GetPercentiles"},
+        {"airquality.AirQualityMonitor", "GetLocationStats"},
+        {"emissions.CarbonEmissionTracker", "GetTopEmitters"},
+    };
+
+    private static final String[][] UNHEDGED_QUERIES = {
+        {"emissions.CarbonEmissionTracker", "GetEmissionTrends"},
+    };
+
+    private static final String[][] WRITES = {
+        {"thermostat.SmartThermostat", "SetTemperature"},
+        {"airquality.AirQualityMonitor", "SetAlertThresholds"},
+        {"airquality.AirQualityMonitor", "RegisterLocation"},
+        {"emissions.CarbonEmissionTracker", "SetEmissionFactors"},
+        {"emissions.CarbonEmissionTracker", "SetClassificationRules"},
+    };
+
+    private static final String[][] IMPORTS = {
+        {"emissions.CarbonEmissionTracker", "ImportUsageFile"},
+    };
+
+    private ClientServiceConfig() {
+    }
+
+    // Numbers must be Doubles: the config is read as if it had been parsed from JSON.
+    static Map<String, ?> get() {
+        Map<String, Object> hedgingPolicy = new HashMap<>();
+        hedgingPolicy.put("maxAttempts", MAX_ATTEMPTS);
+        hedgingPolicy.put("hedgingDelay", HEDGING_DELAY);
+        hedgingPolicy.put("nonFatalStatusCodes", Arrays.asList("UNAVAILABLE", "RESOURCE_EXHAUSTED"));
+
+        Map<String, Object> queries = methodConfig(HEDGED_QUERIES, QUERY_TIMEOUT);
+        queries.put("hedgingPolicy", hedgingPolicy);
+
+        Map<String, Object> retryPolicy = new HashMap<>();
+        retryPolicy.put("maxAttempts", MAX_ATTEMPTS);
+        retryPolicy.put("initialBackoff", RETRY_INITIAL_BACKOFF);
+        retryPolicy.put("maxBackoff", RETRY_MAX_BACKOFF);
+        retryPolicy.put("backoffMultiplier", 2.0);
+        retryPolicy.put("retryableStatusCodes", Arrays.asList("UNAVAILABLE"));
+
+        Map<String, Object> writes = methodConfig(WRITES, WRITE_TIMEOUT);
+        writes.put("retryPolicy", retryPolicy);
+
+        Map<String, Object> retryThrottling = new HashMap<>();
+        // Stop hedging and retrying while most calls are failing, so an outage is not multiplied by the extra attempts.
+        retryThrottling.put("maxTokens", 10.0);
+        retryThrottling.put("tokenRatio", 0.1);
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("methodConfig", Arrays.asList(
+            queries, methodConfig(UNHEDGED_QUERIES, QUERY_TIMEOUT), writes, methodConfig(IMPORTS, IMPORT_TIMEOUT)));
+        config.put("retryThrottling", retryThrottling);
+        return config;
+    }
+
+    private static Map<String, Object> methodConfig(String[][] methods, String timeout) {
+        List<Map<String, ?>> names = new ArrayList<>();
+        for (String[] method : methods) {
+            Map<String, Object> name = new HashMap<>();
+            name.put("service", method[0]);
+            name.put("method", method[1]);
+            names.add(name);
+        }
+
+        Map<String, Object> methodConfig = new HashMap<>();
+        methodConfig.put("name", names);
+        methodConfig.put("timeout", timeout);
+        return methodConfig;
+    }
+}
@@ -1,8 +1,56 @@
 public class ClimateControlClient {
+    private static final long INITIAL_RECONNECT_MILLIS = 500;
+    private static final long MAX_RECONNECT_MILLIS = 30_000;
+    // Failures a reopened stream can get past; anything else would fail the same way again.
+    private static final Set<Status.Code> RECONNECT_ON = EnumSet.of(
+        Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED, Status.Code.RESOURCE_EXHAUSTED);
+    
+    private final ScheduledExecutorService reconnectScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "air-quality-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Context.CancellableContext streamContext;
+    private volatile ScheduledFuture<?> pendingReconnect;
+    private volatile boolean monitoringCancelled;
+    // Resume point: the last reading received, sent with each reconnect so only the gap is replayed.
+    private volatile long lastSequence;
+    private volatile long lastTimestamp;
+    private volatile long reconnectDelayMillis = INITIAL_RECONNECT_MILLIS;
+    
     private void startAirQualityMonitoring() {
+        monitoringCancelled = false;
+        lastSequence = 0;
+        lastTimestamp = 0;
+        reconnectDelayMillis = INITIAL_RECONNECT_MILLIS;
+        openAirQualityStream();
+        
+        cancelButton.addActionListener(e -> stopAirQualityMonitoring());
+    }
+    
+    private void stopAirQualityMonitoring() {
+        monitoringCancelled = true;
+        ScheduledFuture<?> reconnect = pendingReconnect;
+        if (reconnect != null) {
+            reconnect.cancel(false);
+        }
+        Context.CancellableContext context = streamContext;
+        if (context != null) {
+            context.cancel(new InterruptedException("User cancelled"));
+        }
+    }
+    
+    public void shutdown() {
+        stopAirQualityMonitoring();
+        reconnectScheduler.shutdownNow();
+    }
+    
+    private void openAirQualityStream() {
         SensorRequest request = SensorRequest.newBuilder()
             .setSensorId("sensor-1")
             .setLocation("Living Room")
+            .setSinceSequence(lastSequence)
+            .setSinceTimestamp(lastTimestamp)
             .build();
         
         
@@ -10,16 +58,21 @@ public class ClimateControlClient {
         StreamObserver<AirQualityReading> responseObserver = new StreamObserver<>() {
             @Override
             public void onNext(AirQualityReading reading) {
-                
+                lastSequence = reading.getSequence();
+                lastTimestamp = Long.parseLong(reading.getTimestamp());
+                reconnectDelayMillis = INITIAL_RECONNECT_MILLIS;
             }
             
             @Override
             public void onError(Throwable t) {
                 Status status = Status.fromThrowable(t);
-                if (status.getCode() == Status.Code.CANCELLED) {
+                if (monitoringCancelled) {
                     logger.info("Stream was cancelled");
-                } else {
+                } else if (RECONNECT_ON.contains(status.getCode())) {
                     logger.error("Air quality stream error: " + status);
+                    scheduleReconnect();
+                } else {
+                    logger.error("Air quality stream failed, not reconnecting: " + status);
                 }
             }
             
@@ -29,11 +82,31 @@ public class ClimateControlClient {
             }
         };
         
-        cancellableContext.run(() -> 
-            airQualityStub.streamAirQuality(request, responseObserver));
-        
-        cancelButton.addActionListener(e -> {
-            cancellableContext.cancel(new InterruptedException("User cancelled"));
-        });
+        streamContext = cancellableContext;
+        // A cancel that ran before the line above could not see this context, so it is checked again here.
+        if (monitoringCancelled) {
+            cancellableContext.cancel(null);
+            return;
+        }
+        // Wait for the channel to reconnect rather than failing straight away while it is down.
+        cancellableContext.run(() ->
+            airQualityStub.withWaitForReady().streamAirQuality(request, responseObserver));
+    }
+    
+    // Exponential backoff with jitter, so clients dropped together do not all return together.
+    private void scheduleReconnect() {
+        long delay = reconnectDelayMillis;
+        reconnectDelayMillis = Math.min(delay * 2, MAX_RECONNECT_MILLIS);
+        long jittered = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        logger.info("Reconnecting air quality stream in " + jittered + " ms");
+        try {
+            pendingReconnect = reconnectScheduler.schedule(() -> {
+                if (!monitoringCancelled) {
+                    openAirQualityStream();
+                }
+            }, jittered, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.info("Client shut down, not reconnecting");
+        }
     }
 }
@@ -4,14 +4,18 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
-import javax.jmdns.ServiceInfo;
+import climate.discovery.ServiceInstance;
 import io.grpc.*;
 
 public class ClimateControlGUI extends JFrame {
     
     private AirQualityMonitorGrpc.AirQualityMonitorStub airQualityStub;
-    private SmartThermostatGrpc.SmartThermostatBlockingStub thermostatStub;
+    private AsyncThermostatClient thermostatClient;
     private CarbonEmissionTrackerGrpc.CarbonEmissionTrackerStub emissionsStub;
+    private final ChannelManager channels = ChannelManager.shared();
+    private ChannelManager.Lease airQualityLease;
+    private ChannelManager.Lease thermostatLease;
+    private final EdtBatcher edt = new EdtBatcher();
     
     private JTabbedPane tabbedPane;
     private ServiceDiscoveryPanel discoveryPanel;
@@ -84,15 +88,35 @@ public class ClimateControlGUI extends JFrame {
             JOptionPane.INFORMATION_MESSAGE);
     }
     
-    public void connectToAirQualityService(ServiceInfo info) {
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(
-                info.getHostAddresses()[0], info.getPort())
-            .usePlaintext()
-            .build();
+    public void connectToAirQualityService(ServiceInstance info) {
+        ChannelManager.Lease lease = channels.acquire(info.getHostAddresses().get(0), info.getPort());
+        if (airQualityLease != null) {
+            airQualityLease.close();
+        }
+        airQualityLease = lease;
         
-        airQualityStub = AirQualityMonitorGrpc.newStub(channel);
+        airQualityStub = AirQualityMonitorGrpc.newStub(lease.getChannel());
         airQualityPanel.serviceConnected();
-        log("Connected to Air Quality service at " + info.getHostAddresses()[0] + ":" + info.getPort());
+        log("Connected to Air Quality service at " + info.getHostAddresses().get(0) + ":" + info.getPort());
+    }
+    
+    public void connectToThermostatService(ServiceInstance info) {
+        ChannelManager.Lease lease = channels.acquire(info.getHostAddresses().get(0), info.getPort());
+        if (thermostatLease != null) {
+            thermostatLease.close();
+        }
+        thermostatLease = lease;
+        
+        thermostatClient = new AsyncThermostatClient(lease.getChannel());
+        log("Connected to Thermostat service at " + info.getHostAddresses().get(0) + ":" + info.getPort());
+    }
+    
+    public AsyncThermostatClient getThermostatClient() {
+        return thermostatClient;
+    }
+    
+    public EdtBatcher getEdt() {
+        return edt;
     }
     
     public void log(String message) {
@@ -0,0 +1,98 @@
+package climate.discovery;
+
+import io.grpc.Attributes;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.NameResolver;
+import io.grpc.Status;
+import io.grpc.SynchronizationContext;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resolves a service type to every live instance of it, through whichever
+ * {@link ServiceDiscovery} backend is in use. The address list is pushed to the
+ * channel again whenever an instance is added, updated or removed, so the load
+ * balancer always sees the current set of replicas along with the
+ * {@link LoadReport} each one last published.
+ */
+public class DiscoveryNameResolver extends NameResolver {
+    private final ServiceDiscovery discovery;
+    private final String serviceType;
+    private final SynchronizationContext syncContext;
+    private Listener2 listener;
+    private boolean shutdown;
+
+    private final ServiceDiscovery.InstanceListener instanceListener = new ServiceDiscovery.InstanceListener() {
+        @Override
+        public void instanceAdded(ServiceInstance instance) {
+            syncContext.execute(DiscoveryNameResolver.this::publish);
+        }
+
+        @Override
+        public void instanceUpdated(ServiceInstance instance) {
+            syncContext.execute(DiscoveryNameResolver.this::publish);
+        }
+
+        @Override
+        public void instanceRemoved(ServiceInstance instance) {
+            syncContext.execute(DiscoveryNameResolver.this::publish);
+        }
+    };
+
+    DiscoveryNameResolver(ServiceDiscovery discovery, String serviceType, SynchronizationContext syncContext) {
+        this.discovery = discovery;
+        this.serviceType = serviceType;
+        this.syncContext = syncContext;
+    }
+
+    @Override
+    public String getServiceAuthority() {
+        return serviceType;
+    }
+
+    @Override
+    public void start(Listener2 listener) {
+        this.listener = listener;
+        discovery.addInstanceListener(serviceType, instanceListener);
+        // Reports an error if nothing turns up, so calls fail instead of waiting forever.
+        discovery.lookup(serviceType, null).thenAccept(info -> syncContext.execute(this::publish));
+    }
+
+    @Override
+    public void refresh() {
+        publish();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        discovery.removeInstanceListener(serviceType, instanceListener);
+    }
+
+    // Runs in the synchronization context.
+    private void publish() {
+        if (shutdown || listener == null) {
+            return;
+        }
+        List<EquivalentAddressGroup> groups = new ArrayList<>();
+        for (ServiceInstance instance : discovery.listDiscoveredServices(serviceType).values()) {
+            List<SocketAddress> addresses = new ArrayList<>();
+            for (String host : instance.getHostAddresses()) {
+                addresses.add(new InetSocketAddress(host, instance.getPort()));
+            }
+            if (!addresses.isEmpty()) {
+                LoadReport report = LoadReport.fromInstance(instance);
+                Attributes attributes = report == null ? Attributes.EMPTY
+                    : Attributes.newBuilder().set(LoadReport.ATTRIBUTE, report).build();
+                groups.add(new EquivalentAddressGroup(addresses, attributes));
+            }
+        }
+        if (groups.isEmpty()) {
+            listener.onError(Status.UNAVAILABLE.withDescription("No instances of " + serviceType + " discovered"));
+            return;
+        }
+        listener.onResult(ResolutionResult.newBuilder().setAddresses(groups).build());
+    }
+}
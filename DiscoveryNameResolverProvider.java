@@ -0,0 +1,51 @@
+package climate.discovery;
+
+import io.grpc.NameResolver;
+import io.grpc.NameResolverProvider;
+import java.net.URI;
+
+/**
+ * Makes {@code discovery:///<service type>} targets resolvable, for example
+ * {@code discovery:///_thermostat._tcp.local.}. All resolvers share one
+ * {@link ServiceDiscovery}, so there is a single listener per service type.
+ */
+public class DiscoveryNameResolverProvider extends NameResolverProvider {
+    public static final String SCHEME = "discovery";
+
+    private final ServiceDiscovery discovery;
+
+    public DiscoveryNameResolverProvider(ServiceDiscovery discovery) {
+        this.discovery = discovery;
+    }
+
+    public static String target(String serviceType) {
+        return SCHEME + ":///" + serviceType;
+    }
+
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+        if (!SCHEME.equals(targetUri.getScheme())) {
+            return null;
+        }
+        String path = targetUri.getPath();
+        if (path == null || path.length() <= 1) {
+            throw new IllegalArgumentException("Expected discovery:///<service type>, got " + targetUri);
+        }
+        return new DiscoveryNameResolver(discovery, path.substring(1), args.getSynchronizationContext());
+    }
+
+    @Override
+    public String getDefaultScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    protected boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    protected int priority() {
+        return 5;
+    }
+}
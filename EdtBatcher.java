@@ -0,0 +1,51 @@
+package climate.client;
+
+import javax.swing.SwingUtilities;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Hands work from gRPC threads to the Swing event thread. Updates posted while
+ * one drain is pending join it, so a burst of completions costs one EDT event
+ * instead of one each.
+ */
+public class EdtBatcher {
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public void post(Runnable update) {
+        pending.add(update);
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    /** Delivers the outcome of {@code future} on the EDT. */
+    public <T> void deliver(CompletableFuture<T> future, Consumer<? super T> onSuccess, Consumer<Throwable> onError) {
+        future.whenComplete((result, error) -> post(() -> {
+            if (error == null) {
+                onSuccess.accept(result);
+            } else {
+                onError.accept(error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error);
+            }
+        }));
+    }
+
+    private void drain() {
+        // Cleared before running so anything posted meanwhile schedules a fresh drain.
+        scheduled.set(false);
+        Runnable update;
+        while ((update = pending.poll()) != null) {
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                System.err.println("UI update failed: " + e.getMessage());
+            }
+        }
+    }
+}
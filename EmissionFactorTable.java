@@ -0,0 +1,181 @@
+package climate.emissions;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable, time-versioned emission factors. Each energy source has a list of
+ * factors with the hour they take effect from; updates produce a new table so
+ * readers can hold one consistently for a whole scan.
+ */
+public final class EmissionFactorTable {
+    private static final long HOUR_MILLIS = EmissionRollups.HOUR_MILLIS;
+    private static final int MAGIC = 0x45464654;  // "EFFT"
+    private static final int FORMAT_VERSION = 2;
+
+    private final Map<String, long[]> effectiveFrom;
+    private final Map<String, float[]> factors;
+    private final float defaultFactor;
+
+    /** The time range whose pricing changed as a result of an update. */
+    public static class Change {
+        final EmissionFactorTable table;
+        final long from;
+        final long to;
+
+        Change(EmissionFactorTable table, long from, long to) {
+            this.table = table;
+            this.from = from;
+            this.to = to;
+        }
+
+        public EmissionFactorTable getTable() {
+            return table;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+    }
+
+    private EmissionFactorTable(Map<String, long[]> effectiveFrom, Map<String, float[]> factors,
+                                float defaultFactor) {
+        this.effectiveFrom = effectiveFrom;
+        this.factors = factors;
+        this.defaultFactor = defaultFactor;
+    }
+
+    /** A table whose factors apply to all of history. */
+    public static EmissionFactorTable of(Map<String, Float> initial, float defaultFactor) {
+        Map<String, long[]> effectiveFrom = new HashMap<>();
+        Map<String, float[]> factors = new HashMap<>();
+        initial.forEach((source, factor) -> {
+            effectiveFrom.put(source, new long[]{Long.MIN_VALUE});
+            factors.put(source, new float[]{factor});
+        });
+        return new EmissionFactorTable(effectiveFrom, factors, defaultFactor);
+    }
+
+    public float factorAt(String source, long timestamp) {
+        long[] times = effectiveFrom.get(source);
+        if (times == null) {
+            return defaultFactor;
+        }
+        int index = Arrays.binarySearch(times, timestamp);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index < 0 ? defaultFactor : factors.get(source)[index];
+    }
+
+    public Map<String, Float> factorsAt(long timestamp) {
+        Map<String, Float> current = new HashMap<>();
+        for (String source : factors.keySet()) {
+            current.put(source, factorAt(source, timestamp));
+        }
+        return Collections.unmodifiableMap(current);
+    }
+
+    /**
+     * Returns a new table in which each given factor applies from the start of
+     * the hour containing {@code from} until that source's next existing version.
+     */
+    public Change withFactors(Map<String, Float> updates, long from) {
+        long start = Math.floorDiv(from, HOUR_MILLIS) * HOUR_MILLIS;
+        Map<String, long[]> newEffectiveFrom = new HashMap<>(effectiveFrom);
+        Map<String, float[]> newFactors = new HashMap<>(factors);
+        long changedTo = start;
+
+        for (Map.Entry<String, Float> update : updates.entrySet()) {
+            long[] times = effectiveFrom.getOrDefault(update.getKey(), new long[0]);
+            float[] values = factors.getOrDefault(update.getKey(), new float[0]);
+            int index = Arrays.binarySearch(times, start);
+
+            long[] newTimes;
+            float[] newValues;
+            int next;
+            if (index >= 0) {
+                newTimes = times.clone();
+                newValues = values.clone();
+                newValues[index] = update.getValue();
+                next = index + 1;
+            } else {
+                int insert = -index - 1;
+                newTimes = new long[times.length + 1];
+                newValues = new float[values.length + 1];
+                System.arraycopy(times, 0, newTimes, 0, insert);
+                System.arraycopy(values, 0, newValues, 0, insert);
+                newTimes[insert] = start;
+                newValues[insert] = update.getValue();
+                System.arraycopy(times, insert, newTimes, insert + 1, times.length - insert);
+                System.arraycopy(values, insert, newValues, insert + 1, values.length - insert);
+                next = insert + 1;
+            }
+            changedTo = Math.max(changedTo, next < newTimes.length ? newTimes[next] : Long.MAX_VALUE);
+            newEffectiveFrom.put(update.getKey(), newTimes);
+            newFactors.put(update.getKey(), newValues);
+        }
+
+        return new Change(new EmissionFactorTable(newEffectiveFrom, newFactors, defaultFactor),
+            start, changedTo);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(factors.size());
+        for (Map.Entry<String, float[]> source : factors.entrySet()) {
+            long[] times = effectiveFrom.get(source.getKey());
+            out.writeUTF(source.getKey());
+            out.writeInt(times.length);
+            for (int i = 0; i < times.length; i++) {
+                out.writeLong(times[i]);
+                out.writeFloat(source.getValue()[i]);
+            }
+        }
+    }
+
+    /** Reads a table written by {@link #writeTo}. */
+    public static EmissionFactorTable readFrom(DataInputStream in, float defaultFactor) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an emission factor file");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported emission factor format " + version);
+        }
+        Map<String, long[]> effectiveFrom = new HashMap<>();
+        Map<String, float[]> factors = new HashMap<>();
+        int sourceCount = in.readInt();
+        for (int s = 0; s < sourceCount; s++) {
+            String source = in.readUTF();
+            readVersions(in, source, in.readInt(), effectiveFrom, factors);
+        }
+        return new EmissionFactorTable(effectiveFrom, factors, defaultFactor);
+    }
+
+    private static void readVersions(DataInputStream in, String source, int versions,
+                                     Map<String, long[]> effectiveFrom, Map<String, float[]> factors)
+            throws IOException {
+        if (versions <= 0) {
+            throw new IOException("Corrupt emission factors: " + versions + " versions of " + source);
+        }
+        long[] times = new long[versions];
+        float[] values = new float[versions];
+        for (int i = 0; i < versions; i++) {
+            times[i] = in.readLong();
+            values[i] = in.readFloat();
+        }
+        effectiveFrom.put(source, times);
+        factors.put(source, values);
+    }
+}
@@ -0,0 +1,138 @@
+package climate.emissions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fenwick trees over hourly CO2/kWh, one series for all devices plus one per
+ * device type. Hours are grouped into fixed-size chunks so the index only
+ * allocates the time ranges that actually have data.
+ *
+ * <p>A window costs O(log CHUNK_HOURS) at each edge plus one read per chunk
+ * it spans, since a whole chunk's total is the root of its tree: O(chunks +
+ * log CHUNK_HOURS) overall, not O(log n). A chunk is about 21 days, so a year
+ * is 18 reads besides the edges; the chunks are not indexed any further.
+ * Each chunk is striped for ingest, which multiplies that by the stripes in
+ * use, at most {@code EmissionRollups.STRIPES}.
+ */
+public class EmissionRangeIndex {
+    private static final int CHUNK_HOURS = 512;
+    private static final long HOUR_MILLIS = EmissionRollups.HOUR_MILLIS;
+
+    private final ConcurrentSkipListMap<Long, Chunk> allDevices = new ConcurrentSkipListMap<>();
+    private final Map<String, ConcurrentSkipListMap<Long, Chunk>> byDeviceType = new ConcurrentHashMap<>();
+
+    public static class Sum {
+        final double co2;
+        final double kwh;
+
+        Sum(double co2, double kwh) {
+            this.co2 = co2;
+            this.kwh = kwh;
+        }
+
+        public double getCo2() {
+            return co2;
+        }
+
+        public double getKwh() {
+            return kwh;
+        }
+    }
+
+    // One tree per stripe, created on first use, so concurrent ingest streams rarely share a lock.
+    private static class Chunk {
+        final AtomicReferenceArray<Tree> stripes = new AtomicReferenceArray<>(EmissionRollups.STRIPES);
+
+        void add(int hour, double kwhDelta, double co2Delta) {
+            int stripe = EmissionRollups.stripe();
+            Tree tree = stripes.get(stripe);
+            if (tree == null) {
+                stripes.compareAndSet(stripe, null, new Tree());
+                tree = stripes.get(stripe);
+            }
+            tree.add(hour, kwhDelta, co2Delta);
+        }
+
+        void prefix(int end, double[] out) {
+            for (int i = 0; i < EmissionRollups.STRIPES; i++) {
+                Tree tree = stripes.get(i);
+                if (tree != null) {
+                    tree.prefix(end, out);
+                }
+            }
+        }
+    }
+
+    private static class Tree {
+        final double[] co2 = new double[CHUNK_HOURS + 1];
+        final double[] kwh = new double[CHUNK_HOURS + 1];
+
+        synchronized void add(int hour, double kwhDelta, double co2Delta) {
+            for (int i = hour + 1; i <= CHUNK_HOURS; i += i & -i) {
+                co2[i] += co2Delta;
+                kwh[i] += kwhDelta;
+            }
+        }
+
+        // Sums hours [0, end) of this tree into out; one step for the whole chunk, since CHUNK_HOURS is a power of two.
+        synchronized void prefix(int end, double[] out) {
+            for (int i = end; i > 0; i -= i & -i) {
+                out[0] += co2[i];
+                out[1] += kwh[i];
+            }
+        }
+    }
+
+    public void add(String deviceType, long timestamp, double kwh, double co2) {
+        long hour = Math.floorDiv(timestamp, HOUR_MILLIS);
+        addHour(allDevices, hour, kwh, co2);
+        addHour(series(deviceType), hour, kwh, co2);
+    }
+
+    /** Sums the hours overlapping {@code [from, to)}; a null device type means all devices. See the class docs for cost. */
+    public Sum sum(long from, long to, String deviceType) {
+        ConcurrentSkipListMap<Long, Chunk> chunks = deviceType == null ? allDevices : byDeviceType.get(deviceType);
+        if (chunks == null || from >= to) {
+            return new Sum(0, 0);
+        }
+
+        long firstHour = Math.floorDiv(from, HOUR_MILLIS);
+        long endHour = -Math.floorDiv(-to, HOUR_MILLIS);
+        double[] total = new double[2];
+        double[] before = new double[2];
+        for (Map.Entry<Long, Chunk> entry : chunks.subMap(
+                Math.floorDiv(firstHour, CHUNK_HOURS), true,
+                Math.floorDiv(endHour - 1, CHUNK_HOURS), true).entrySet()) {
+            long chunkStart = entry.getKey() * CHUNK_HOURS;
+            int lo = (int) Math.max(0, firstHour - chunkStart);
+            int hi = (int) Math.min(CHUNK_HOURS, endHour - chunkStart);
+            entry.getValue().prefix(hi, total);
+            entry.getValue().prefix(lo, before);
+        }
+        return new Sum(total[0] - before[0], total[1] - before[1]);
+    }
+
+    private static void addHour(ConcurrentSkipListMap<Long, Chunk> chunks, long hour, double kwh, double co2) {
+        long chunkIndex = Math.floorDiv(hour, CHUNK_HOURS);
+        Chunk chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunk = chunks.computeIfAbsent(chunkIndex, k -> new Chunk());
+        }
+        chunk.add((int) (hour - chunkIndex * CHUNK_HOURS), kwh, co2);
+    }
+
+    /** Applies a CO2 correction to one hour, e.g. after the hour was repriced. */
+    public void adjustCo2(String deviceType, long hourStart, double co2Delta) {
+        long hour = Math.floorDiv(hourStart, HOUR_MILLIS);
+        addHour(allDevices, hour, 0, co2Delta);
+        addHour(series(deviceType), hour, 0, co2Delta);
+    }
+
+    private ConcurrentSkipListMap<Long, Chunk> series(String deviceType) {
+        ConcurrentSkipListMap<Long, Chunk> chunks = byDeviceType.get(deviceType);
+        return chunks != null ? chunks : byDeviceType.computeIfAbsent(deviceType, k -> new ConcurrentSkipListMap<>());
+    }
+}
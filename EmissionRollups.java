@@ -0,0 +1,296 @@
+package climate.emissions;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
+
+/**
+ * Hourly and daily CO2/kWh totals per device type, maintained on ingest so that
+ * period queries sum a handful of buckets instead of scanning the usage history.
+ */
+public class EmissionRollups {
+    static final long HOUR_MILLIS = 3600 * 1000L;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    static final int STRIPES = 8;
+
+    private final ConcurrentSkipListMap<Long, Bucket> hourly = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Bucket> daily = new ConcurrentSkipListMap<>();
+
+    public static class Totals {
+        double co2;
+        double kwh;
+        final Map<String, Double> co2BySource = new HashMap<>();
+
+        public double getCo2() {
+            return co2;
+        }
+
+        public double getKwh() {
+            return kwh;
+        }
+
+        public Map<String, Double> getCo2BySource() {
+            return co2BySource;
+        }
+    }
+
+    /** The energy source and CO2 usage was priced at as it was added. */
+    public static class Priced {
+        final String source;
+        final double co2;
+
+        Priced(String source, double co2) {
+            this.source = source;
+            this.co2 = co2;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public double getCo2() {
+            return co2;
+        }
+    }
+
+    /** Receives the CO2 change of each hourly cell touched by a reprice. */
+    public interface RepriceListener {
+        void co2Changed(String deviceType, long hourStart, double co2Delta);
+    }
+
+    /*
+     * One (bucket, device type) total, split into stripes picked by thread so
+     * concurrent ingest streams rarely share a lock. Stripes are created on
+     * first use and summed on read. Each stripe prices what it holds under its
+     * own lock, so the guarantees of priced adds and reprices hold per stripe.
+     */
+    private static class Cell {
+        final String deviceType;
+        final AtomicReferenceArray<Part> parts = new AtomicReferenceArray<>(STRIPES);
+        volatile String source;
+
+        Cell(String deviceType, String source) {
+            this.deviceType = deviceType;
+            this.source = source;
+        }
+
+        Part part() {
+            int stripe = stripe();
+            Part part = parts.get(stripe);
+            if (part == null) {
+                parts.compareAndSet(stripe, null, new Part(source));
+                part = parts.get(stripe);
+            }
+            return part;
+        }
+
+        void add(double kwh, double co2) {
+            part().add(kwh, co2);
+        }
+
+        void addTo(Totals totals) {
+            for (int i = 0; i < STRIPES; i++) {
+                Part part = parts.get(i);
+                if (part != null) {
+                    part.addTo(totals);
+                }
+            }
+        }
+
+        Priced addPriced(long timestamp, double kwh, Function<String, String> sourceOf,
+                         ToDoubleBiFunction<String, Long> factorAt) {
+            return part().addPriced(deviceType, timestamp, kwh, sourceOf, factorAt);
+        }
+
+        double reprice(String newSource, double factor) {
+            source = newSource;
+            double delta = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                Part part = parts.get(i);
+                if (part != null) {
+                    delta += part.reprice(newSource, factor);
+                }
+            }
+            return delta;
+        }
+
+        // The correction lands in this thread's stripe; only the sum over stripes means anything.
+        void adjust(String newSource, double co2Delta) {
+            source = newSource;
+            for (int i = 0; i < STRIPES; i++) {
+                Part part = parts.get(i);
+                if (part != null) {
+                    part.adjust(newSource, 0);
+                }
+            }
+            part().adjust(newSource, co2Delta);
+        }
+    }
+
+    private static class Part {
+        String source;
+        double kwh;
+        double co2;
+
+        Part(String source) {
+            this.source = source;
+        }
+
+        synchronized void add(double kwh, double co2) {
+            this.kwh += kwh;
+            this.co2 += co2;
+        }
+
+        synchronized void addTo(Totals totals) {
+            if (source == null) {
+                return;  // created by a priced add that has not run yet
+            }
+            totals.co2 += co2;
+            totals.kwh += kwh;
+            totals.co2BySource.merge(source, co2, Double::sum);
+        }
+
+        synchronized Priced addPriced(String deviceType, long timestamp, double kwh,
+                                      Function<String, String> sourceOf, ToDoubleBiFunction<String, Long> factorAt) {
+            source = sourceOf.apply(deviceType);
+            double co2 = kwh * factorAt.applyAsDouble(source, timestamp);
+            this.kwh += kwh;
+            this.co2 += co2;
+            return new Priced(source, co2);
+        }
+
+        synchronized double reprice(String newSource, double factor) {
+            double previous = co2;
+            source = newSource;
+            co2 = kwh * factor;
+            return co2 - previous;
+        }
+
+        synchronized void adjust(String newSource, double co2Delta) {
+            source = newSource;
+            co2 += co2Delta;
+        }
+    }
+
+    private static class Bucket {
+        final Map<String, Cell> cells = new ConcurrentHashMap<>();
+
+        Cell cell(String deviceType, String source) {
+            Cell cell = cells.get(deviceType);
+            return cell != null ? cell : cells.computeIfAbsent(deviceType, k -> new Cell(k, source));
+        }
+    }
+
+    public void add(String deviceType, String source, long timestamp, double kwh, double co2) {
+        bucket(hourly, floor(timestamp, HOUR_MILLIS)).cell(deviceType, source).add(kwh, co2);
+        bucket(daily, floor(timestamp, DAY_MILLIS)).cell(deviceType, source).add(kwh, co2);
+    }
+
+    /**
+     * Prices usage and adds it in one step under its hourly cell's lock, which
+     * {@link #reprice} takes cell by cell too. Usage added before a reprice
+     * reaches its cell is repriced along with the cell, and usage added after
+     * is priced from the new factors, so none is left at a stale price. The
+     * daily cell and any listeners take the returned CO2 as is; a reprice
+     * corrects them by the same hourly deltas either way.
+     */
+    public Priced add(String deviceType, long timestamp, double kwh, Function<String, String> sourceOf,
+                      ToDoubleBiFunction<String, Long> factorAt) {
+        Priced priced = bucket(hourly, floor(timestamp, HOUR_MILLIS)).cell(deviceType, null)
+            .addPriced(timestamp, kwh, sourceOf, factorAt);
+        bucket(daily, floor(timestamp, DAY_MILLIS)).cell(deviceType, priced.source).add(kwh, priced.co2);
+        return priced;
+    }
+
+    /**
+     * Totals for {@code [from, to)}, optionally restricted to one device type.
+     * Whole days are read from the daily buckets and the edges from the hourly
+     * ones, so the window is effectively widened to whole hours.
+     */
+    public Totals totals(long from, long to, String deviceType) {
+        Totals totals = new Totals();
+        if (from >= to) {
+            return totals;
+        }
+
+        long firstDay = ceil(from, DAY_MILLIS);
+        long lastDay = floor(to, DAY_MILLIS);
+        if (firstDay >= lastDay) {
+            accumulate(hourly.subMap(floor(from, HOUR_MILLIS), true, to, false), deviceType, totals);
+        } else {
+            accumulate(hourly.subMap(floor(from, HOUR_MILLIS), true, firstDay, false), deviceType, totals);
+            accumulate(daily.subMap(firstDay, true, lastDay, false), deviceType, totals);
+            accumulate(hourly.subMap(lastDay, true, to, false), deviceType, totals);
+        }
+        return totals;
+    }
+
+    /**
+     * Re-derives energy source and CO2 for the hours overlapping {@code [from, to)}
+     * after factors or rules change. {@code factorAt} is given the source and the
+     * start of each hour, so factor changes must be hour-aligned. Daily buckets
+     * are corrected by the sum of their hourly changes.
+     */
+    public void reprice(long from, long to, Function<String, String> sourceOf,
+                        ToDoubleBiFunction<String, Long> factorAt, RepriceListener listener) {
+        long firstHour = from == Long.MIN_VALUE ? Long.MIN_VALUE : floor(from, HOUR_MILLIS);
+        long firstDay = from == Long.MIN_VALUE ? Long.MIN_VALUE : floor(from, DAY_MILLIS);
+        Map<Long, Map<String, Double>> dailyDeltas = new HashMap<>();
+
+        for (Map.Entry<Long, Bucket> bucket : hourly.subMap(firstHour, true, to, false).entrySet()) {
+            long hourStart = bucket.getKey();
+            for (Cell cell : bucket.getValue().cells.values()) {
+                String source = sourceOf.apply(cell.deviceType);
+                double delta = cell.reprice(source, factorAt.applyAsDouble(source, hourStart));
+                if (delta != 0) {
+                    listener.co2Changed(cell.deviceType, hourStart, delta);
+                    dailyDeltas.computeIfAbsent(floor(hourStart, DAY_MILLIS), k -> new HashMap<>())
+                        .merge(cell.deviceType, delta, Double::sum);
+                }
+            }
+        }
+        for (Map.Entry<Long, Bucket> bucket : daily.subMap(firstDay, true, to, false).entrySet()) {
+            Map<String, Double> deltas = dailyDeltas.getOrDefault(bucket.getKey(), Map.of());
+            for (Cell cell : bucket.getValue().cells.values()) {
+                cell.adjust(sourceOf.apply(cell.deviceType), deltas.getOrDefault(cell.deviceType, 0.0));
+            }
+        }
+    }
+
+    private void accumulate(NavigableMap<Long, Bucket> buckets, String deviceType, Totals totals) {
+        for (Bucket bucket : buckets.values()) {
+            if (deviceType == null) {
+                bucket.cells.values().forEach(cell -> cell.addTo(totals));
+            } else {
+                Cell cell = bucket.cells.get(deviceType);
+                if (cell != null) {
+                    cell.addTo(totals);
+                }
+            }
+        }
+    }
+
+    private static Bucket bucket(ConcurrentSkipListMap<Long, Bucket> buckets, long start) {
+        Bucket bucket = buckets.get(start);
+        return bucket != null ? bucket : buckets.computeIfAbsent(start, k -> new Bucket());
+    }
+
+    /** The calling thread's stripe of the ingest-path aggregates, as in QueryResultCache. */
+    static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    static long floor(long timestamp, long size) {
+        return Math.floorDiv(timestamp, size) * size;
+    }
+
+    static long ceil(long timestamp, long size) {
+        return -Math.floorDiv(-timestamp, size) * size;
+    }
+}
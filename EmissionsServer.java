@@ -1,33 +1,41 @@
 package climate.emissions;
 
+import climate.discovery.LoadReporter;
+import climate.discovery.ServiceDiscovery;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
-import io.grpc.stub.StreamObserver;
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
+import io.grpc.ServerInterceptors;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 
 public class EmissionsServer {
+// Under the clients' 30s keepalive.
+private static final long PERMIT_KEEPALIVE_SECONDS = 20;
 private Server server;
+private EnhancedCarbonEmissionTracker tracker;
 private final int port;
 private final String serviceType = "_emissions._tcp.local.";
 private final String serviceName = "CarbonEmissionTrackerService";
+private ServiceDiscovery discovery;
+private ServiceDiscovery.Registration registration;
+private final LoadReporter loadReporter =
+new LoadReporter(Collections.singletonMap("description", "Carbon Emission Tracking Service"));
 
 public EmissionsServer(int port) {
 this.port = port;
 }
 
 public void start() throws IOException {
+tracker = new EnhancedCarbonEmissionTracker();
 server = ServerBuilder.forPort(port)
-.addService(new CarbonEmissionTrackerImpl())
+.permitKeepAliveTime(PERMIT_KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+.permitKeepAliveWithoutCalls(true)
+.addService(ServerInterceptors.intercept(tracker, loadReporter))
 .build()
 .start();
 
-registerWithJmDNS();
+registerService();
 
 Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 System.err.println("Shutting down gRPC server");
@@ -39,20 +47,33 @@ e.printStackTrace(System.err);
 }));
 }
 
-private void stop() throws InterruptedException {
+public void stop() throws InterruptedException {
+// Unregister first so clients stop picking this instance while it drains.
+loadReporter.shutdown();
+if (registration != null) {
+registration.unregister();
+try {
+discovery.shutdown();
+} catch (IOException e) {
+System.err.println("Could not shut down service discovery: " + e.getMessage());
+}
+}
 if (server != null) {
 server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
 }
+// Once calls have drained, so the final persist covers everything they ingested.
+if (tracker != null) {
+tracker.shutdown();
+}
 }
 
-private void registerWithJmDNS() {
+private void registerService() {
 try {
-JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-ServiceInfo serviceInfo = ServiceInfo.create(serviceType, serviceName, port, "Carbon Emission Tracking Service");
-jmdns.registerService(serviceInfo);
-System.out.println("Registered service with jmDNS: " + serviceInfo);
+discovery = ServiceDiscovery.create();
+registration = discovery.register(serviceType, serviceName, port, loadReporter.properties());
+loadReporter.start(registration);
 } catch (IOException e) {
-System.err.println("Could not register with jmDNS: " + e.getMessage());
+System.err.println("Could not register service: " + e.getMessage());
 }
 }
 
@@ -62,50 +83,6 @@ server.awaitTermination();
 }
 }
 
-static class CarbonEmissionTrackerImpl extends CarbonEmissionTrackerGrpc.CarbonEmissionTrackerImplBase {
-@Override
-public StreamObserver<UsageEntry> logDeviceUsage(StreamObserver<EmissionSummary> responseObserver) {
-return new StreamObserver<UsageEntry>() {
-final List<UsageEntry> entries = new ArrayList<>();
-float totalCO2 = 0;
-
-@Override
-public void onNext(UsageEntry entry) {
-entries.add(entry);
-float co2 = entry.getDurationHours() * entry.getPowerRatingKw() * 0.5f;
-totalCO2 += co2;
-System.out.println("Logged usage: " + entry.getDeviceType() + " for " + 
-entry.getDurationHours() + " hours, emitting " + co2 + " kg CO2");
-}
-
-@Override
-public void onError(Throwable t) {
-System.err.println("Error in device usage stream: " + t.getMessage());
-}
-
-@Override
-public void onCompleted() {
-String suggestions;
-if (totalCO2 > 10) {
-suggestions = "High emissions detected! Consider using energy-efficient devices.";
-} else if (totalCO2 > 5) {
-suggestions = "Moderate emissions. You could optimize device usage times.";
-} else {
-suggestions = "Good job! Your emissions are low.";
-}
-
-EmissionSummary summary = EmissionSummary.newBuilder()
-.setTotalCo2(totalCO2)
-.setSuggestions(suggestions)
-.build();
-
-responseObserver.onNext(summary);
-responseObserver.onCompleted();
-}
-};
-}
-}
-
 public static void main(String[] args) throws IOException, InterruptedException {
 EmissionsServer server = new EmissionsServer(50053);
 server.start();
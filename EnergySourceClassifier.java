@@ -0,0 +1,139 @@
+package climate.emissions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps device types to energy sources using keyword rules. The keywords are
+ * compiled into a single Aho-Corasick automaton, so an unseen device type is
+ * classified in one case-insensitive pass; after that it is a cache lookup.
+ * Rules earlier in the map win when several match.
+ */
+public class EnergySourceClassifier {
+    private static final int MAX_CACHED_TYPES = 10_000;
+
+    private final Map<String, List<String>> rules;
+    private final String defaultSource;
+    private final String[] sources;
+    private final List<Map<Character, Integer>> transitions = new ArrayList<>();
+    private final List<Integer> failures = new ArrayList<>();
+    private final List<Integer> matches = new ArrayList<>();
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+
+    public EnergySourceClassifier(LinkedHashMap<String, List<String>> rules, String defaultSource) {
+        if (defaultSource == null || defaultSource.isEmpty()) {
+            throw new IllegalArgumentException("Default energy source must not be empty");
+        }
+        this.rules = Collections.unmodifiableMap(new LinkedHashMap<>(rules));
+        this.defaultSource = defaultSource;
+        this.sources = rules.keySet().toArray(new String[0]);
+
+        newState();
+        int priority = 0;
+        for (Map.Entry<String, List<String>> rule : rules.entrySet()) {
+            if (rule.getKey() == null || rule.getKey().isEmpty()) {
+                throw new IllegalArgumentException("Energy source must not be empty");
+            }
+            for (String keyword : rule.getValue()) {
+                if (keyword == null || keyword.isEmpty()) {
+                    throw new IllegalArgumentException("Empty keyword for energy source " + rule.getKey());
+                }
+                addKeyword(keyword, priority);
+            }
+            priority++;
+        }
+        buildFailureLinks();
+    }
+
+    public static EnergySourceClassifier defaults() {
+        LinkedHashMap<String, List<String>> rules = new LinkedHashMap<>();
+        rules.put("SOLAR", List.of("solar", "pv"));
+        rules.put("GAS", List.of("gas"));
+        return new EnergySourceClassifier(rules, "ELECTRICITY");
+    }
+
+    public String classify(String deviceType) {
+        String source = cache.get(deviceType);
+        if (source != null) {
+            return source;
+        }
+
+        source = match(deviceType);
+        if (cache.size() >= MAX_CACHED_TYPES) {
+            cache.clear();
+        }
+        cache.put(deviceType, source);
+        return source;
+    }
+
+    public Map<String, List<String>> getRules() {
+        return rules;
+    }
+
+    public String getDefaultSource() {
+        return defaultSource;
+    }
+
+    private String match(String deviceType) {
+        int state = 0;
+        int best = Integer.MAX_VALUE;
+        for (int i = 0; i < deviceType.length() && best > 0; i++) {
+            char c = Character.toLowerCase(deviceType.charAt(i));
+            Integer next = transitions.get(state).get(c);
+            while (next == null && state != 0) {
+                state = failures.get(state);
+                next = transitions.get(state).get(c);
+            }
+            state = next == null ? 0 : next;
+            best = Math.min(best, matches.get(state));
+        }
+        return best == Integer.MAX_VALUE ? defaultSource : sources[best];
+    }
+
+    private int newState() {
+        transitions.add(new HashMap<>());
+        failures.add(0);
+        matches.add(Integer.MAX_VALUE);
+        return transitions.size() - 1;
+    }
+
+    private void addKeyword(String keyword, int priority) {
+        int state = 0;
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = Character.toLowerCase(keyword.charAt(i));
+            Integer next = transitions.get(state).get(c);
+            if (next == null) {
+                next = newState();
+                transitions.get(state).put(c, next);
+            }
+            state = next;
+        }
+        matches.set(state, Math.min(matches.get(state), priority));
+    }
+
+    // Breadth-first, so a state's failure target is always finished before the state itself.
+    private void buildFailureLinks() {
+        List<Integer> queue = new ArrayList<>(transitions.get(0).values());
+        for (int head = 0; head < queue.size(); head++) {
+            int state = queue.get(head);
+            for (Map.Entry<Character, Integer> edge : transitions.get(state).entrySet()) {
+                int child = edge.getValue();
+                int fallback = failures.get(state);
+                Integer target = transitions.get(fallback).get(edge.getKey());
+                while (target == null && fallback != 0) {
+                    fallback = failures.get(fallback);
+                    target = transitions.get(fallback).get(edge.getKey());
+                }
+                int failure = target == null || target == child ? 0 : target;
+                failures.set(child, failure);
+                matches.set(child, Math.min(matches.get(child), matches.get(failure)));
+                queue.add(child);
+            }
+        }
+    }
+}
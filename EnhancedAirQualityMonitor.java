@@ -1,16 +1,33 @@
 package climate.airquality;
+import climate.cache.QueryResultCache;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class EnhancedAirQualityMonitor extends AirQualityMonitorGrpc.AirQualityMonitorImplBase {
+    private static final int HISTORY_CACHE_ENTRIES = 256;
+    private static final int READINGS_PER_STREAM = 30;
+    private static final int FEED_THREADS = 2;
+    private static final int MAX_REPLAYED_READINGS = 3600;
+    
     private final Map<String, List<AirQualityReading>> historicalData = new ConcurrentHashMap<>();
+    private final QueryResultCache<String, HistoryWindow, AirQualityReading> historyCache =
+        new QueryResultCache<>("Historical data", HISTORY_CACHE_ENTRIES, HistoryWindow::add);
+    private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
     private final Map<String, Float> alertThresholds = new ConcurrentHashMap<>();
+    private final AirQualitySketches sketches = new AirQualitySketches();
+    private final LocationHierarchy hierarchy = new LocationHierarchy();
     private final ScheduledExecutorService healthMonitor = Executors.newSingleThreadScheduledExecutor();
+    private final LocationFeeds feeds = new LocationFeeds(
+        Executors.newScheduledThreadPool(FEED_THREADS), this::produceReading);
+    private final Random random = new Random();
     private boolean isHealthy = true;
     
     public EnhancedAirQualityMonitor() {
@@ -19,6 +36,30 @@ public class EnhancedAirQualityMonitor extends AirQualityMonitorGrpc.AirQualityM
         alertThresholds.put("pm25", 25.0f);  
         
         healthMonitor.scheduleAtFixedRate(this::checkHealth, 0, 1, TimeUnit.MINUTES);
+        healthMonitor.scheduleAtFixedRate(historyCache::logStats, 10, 10, TimeUnit.MINUTES);
+    }
+    
+    /** The readings of one location within a sliding window; new readings are appended as they land. */
+    private static class HistoryWindow {
+        final long windowMillis;
+        final Deque<AirQualityReading> readings = new ArrayDeque<>();
+        
+        HistoryWindow(long windowMillis) {
+            this.windowMillis = windowMillis;
+        }
+        
+        boolean add(long timestamp, AirQualityReading reading) {
+            readings.addLast(reading);
+            return true;
+        }
+        
+        List<AirQualityReading> current() {
+            long cutoff = System.currentTimeMillis() - windowMillis;
+            while (!readings.isEmpty() && Long.parseLong(readings.peekFirst().getTimestamp()) < cutoff) {
+                readings.removeFirst();
+            }
+            return List.copyOf(readings);
+        }
     }
     
     @Override
@@ -31,42 +72,288 @@ public class EnhancedAirQualityMonitor extends AirQualityMonitorGrpc.AirQualityM
         }
         
         String location = request.getLocation();
-        historicalData.putIfAbsent(location, new ArrayList<>());
+        ServerCallStreamObserver<AirQualityReading> call =
+            (ServerCallStreamObserver<AirQualityReading>) responseObserver;
+        ResumableStream stream = new ResumableStream(location, call);
+        call.setOnReadyHandler(stream::drain);
+        call.setOnCancelHandler(() -> feeds.unsubscribe(location, stream));
+        // Subscribe before reading history so nothing produced in between is missed;
+        // live readings wait until the replay has gone out, and duplicates are dropped.
+        feeds.subscribe(location, stream);
+        if (request.getSinceSequence() > 0 || request.getSinceTimestamp() > 0) {
+            stream.replay(readingsSince(location, request.getSinceSequence(), request.getSinceTimestamp()));
+        } else {
+            stream.replay(Collections.emptyList());
+        }
+    }
+    
+    /**
+     * One StreamAirQuality call: replayed history first, then live readings from
+     * the shared feed. The replay only sends while the call is ready and picks up
+     * again from the onReady handler, so a slow client holds it in memory here
+     * instead of in the transport's buffers.
+     */
+    private class ResumableStream implements Consumer<AirQualityReading> {
+        private final String location;
+        private final ServerCallStreamObserver<AirQualityReading> call;
+        private Deque<AirQualityReading> replaying;  // null until the replay is known
+        private List<AirQualityReading> heldLive = new ArrayList<>();
+        private long lastSequence;
+        private int liveSent;
+        
+        ResumableStream(String location, ServerCallStreamObserver<AirQualityReading> call) {
+            this.location = location;
+            this.call = call;
+        }
+        
+        synchronized void replay(List<AirQualityReading> readings) {
+            replaying = new ArrayDeque<>(readings);
+            drain();
+        }
+        
+        synchronized void drain() {
+            if (replaying == null || heldLive == null) {
+                return;
+            }
+            while (!replaying.isEmpty() && call.isReady()) {
+                if (!send(replaying.pollFirst())) {
+                    return;
+                }
+            }
+            if (!replaying.isEmpty()) {
+                return;
+            }
+            List<AirQualityReading> held = heldLive;
+            heldLive = null;
+            for (AirQualityReading reading : held) {
+                sendLive(reading);
+            }
+        }
+        
+        @Override
+        public synchronized void accept(AirQualityReading reading) {
+            if (heldLive != null) {
+                heldLive.add(reading);
+            } else {
+                sendLive(reading);
+            }
+        }
+        
+        private void sendLive(AirQualityReading reading) {
+            if (reading.getSequence() > lastSequence && send(reading) && ++liveSent == READINGS_PER_STREAM) {
+                feeds.unsubscribe(location, this);
+                call.onCompleted();
+            }
+        }
+        
+        private boolean send(AirQualityReading reading) {
+            if (call.isCancelled()) {
+                feeds.unsubscribe(location, this);
+                return false;
+            }
+            if (liveSent == READINGS_PER_STREAM) {
+                return false;
+            }
+            call.onNext(reading);
+            lastSequence = Math.max(lastSequence, reading.getSequence());
+            return true;
+        }
+    }
+    
+    /**
+     * Retained readings after a resume point, oldest first, at most the last
+     * MAX_REPLAYED_READINGS. The timestamp decides when given, since sequences
+     * restart with the server and differ between replicas; the sequence only
+     * breaks ties within a millisecond, or decides alone if no timestamp is sent.
+     */
+    private List<AirQualityReading> readingsSince(String location, long sinceSequence, long sinceTimestamp) {
+        List<AirQualityReading> history = historicalData.get(location);
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        Deque<AirQualityReading> newer = new ArrayDeque<>();
+        synchronized (history) {
+            for (int i = history.size() - 1; i >= 0 && newer.size() < MAX_REPLAYED_READINGS; i--) {
+                AirQualityReading reading = history.get(i);
+                long timestamp = Long.parseLong(reading.getTimestamp());
+                boolean alreadySeen = sinceTimestamp > 0
+                    ? timestamp < sinceTimestamp
+                        || timestamp == sinceTimestamp && reading.getSequence() <= sinceSequence
+                    : reading.getSequence() <= sinceSequence;
+                if (alreadySeen) {
+                    break;
+                }
+                newer.addFirst(reading);
+            }
+        }
+        return new ArrayList<>(newer);
+    }
+    
+    @Override
+    public StreamObserver<SubscriptionUpdate> subscribeAirQuality(StreamObserver<LocationEvent> responseObserver) {
+        if (!isHealthy) {
+            responseObserver.onError(Status.UNAVAILABLE
+                .withDescription("Service temporarily unavailable")
+                .asRuntimeException());
+            return new StreamObserver<SubscriptionUpdate>() {
+                @Override
+                public void onNext(SubscriptionUpdate update) {
+                }
+                
+                @Override
+                public void onError(Throwable t) {
+                }
+                
+                @Override
+                public void onCompleted() {
+                }
+            };
+        }
+        
+        ServerCallStreamObserver<LocationEvent> call = (ServerCallStreamObserver<LocationEvent>) responseObserver;
         
-        new Thread(() -> {
-            Random random = new Random();
-            try {
-                for (int i = 0; i < 30; i++) {
-                    if (responseObserver.isCancelled()) {
+        /*
+         * Locations are bound to small ids once, then readings carry only the id;
+         * a removed location's id is released with an unbound event. Events only
+         * go out while the call is ready. Binding events queue in order, but
+         * readings waiting for a slow client keep only the latest per location,
+         * so what is held stays bounded by the number of locations watched.
+         */
+        class Subscription implements StreamObserver<SubscriptionUpdate> {
+            final Map<String, Binding> subscribed = new HashMap<>();
+            final Deque<LocationEvent> bindings = new ArrayDeque<>();
+            final Map<Integer, LocationEvent> latestReadings = new LinkedHashMap<>();
+            int nextId = 1;
+            boolean closed = false;
+            
+            // One watched location; feeds may still deliver to it for a moment after it is released.
+            class Binding implements Consumer<AirQualityReading> {
+                final int id;
+                boolean released = false;
+                
+                Binding(int id) {
+                    this.id = id;
+                }
+                
+                @Override
+                public void accept(AirQualityReading reading) {
+                    send(this, reading);
+                }
+            }
+            
+            @Override
+            public synchronized void onNext(SubscriptionUpdate update) {
+                if (closed) {
+                    return;
+                }
+                for (String location : update.getRemoveList()) {
+                    Binding binding = subscribed.remove(location);
+                    if (binding != null) {
+                        feeds.unsubscribe(location, binding);
+                        binding.released = true;
+                        latestReadings.remove(binding.id);
+                        bindings.add(LocationEvent.newBuilder()
+                            .setLocationId(binding.id)
+                            .setUnbound(true)
+                            .build());
+                    }
+                }
+                for (String location : update.getAddList()) {
+                    if (location.isEmpty() || subscribed.containsKey(location)) {
+                        continue;
+                    }
+                    int id = nextId++;
+                    bindings.add(LocationEvent.newBuilder()
+                        .setLocationId(id)
+                        .setLocation(location)
+                        .build());
+                    Binding binding = new Binding(id);
+                    subscribed.put(location, binding);
+                    feeds.subscribe(location, binding);
+                }
+                drain();
+            }
+            
+            // Feeds for different locations tick on different threads, so sends are serialized here.
+            synchronized void send(Binding binding, AirQualityReading reading) {
+                if (!closed && !binding.released) {
+                    latestReadings.put(binding.id, LocationEvent.newBuilder()
+                        .setLocationId(binding.id)
+                        .setReading(reading)
+                        .build());
+                    drain();
+                }
+            }
+            
+            // Bindings first, so a reading never arrives before its id is bound or after it is released.
+            synchronized void drain() {
+                while (!closed && call.isReady()) {
+                    if (!bindings.isEmpty()) {
+                        responseObserver.onNext(bindings.pollFirst());
+                    } else if (!latestReadings.isEmpty()) {
+                        Iterator<LocationEvent> oldest = latestReadings.values().iterator();
+                        responseObserver.onNext(oldest.next());
+                        oldest.remove();
+                    } else {
                         return;
                     }
-                    
-                   
-                    boolean anomaly = random.nextDouble() < 0.1;
-                    
-                    AirQualityReading reading = AirQualityReading.newBuilder()
-                        .setCo2(anomaly ? 1500 + random.nextFloat() * 1000 : 
-                                400 + random.nextFloat() * 600)
-                        .setNo2(anomaly ? 60 + random.nextFloat() * 40 : 
-                                random.nextFloat() * 50)
-                        .setPm25(anomaly ? 50 + random.nextFloat() * 30 : 
-                                 random.nextFloat() * 35)
-                        .setTimestamp(String.valueOf(System.currentTimeMillis()))
-                        .setAnomaly(anomaly)
-                        .build();
-                    
-                    historicalData.get(location).add(reading);
-                    
-                    checkThresholds(reading, location);
-                    
-                    responseObserver.onNext(reading);
-                    Thread.sleep(1000);
                 }
-                responseObserver.onCompleted();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
-        }).start();
+            
+            synchronized void close() {
+                if (!closed) {
+                    closed = true;
+                    subscribed.forEach(feeds::unsubscribe);
+                    subscribed.clear();
+                    bindings.clear();
+                    latestReadings.clear();
+                }
+            }
+            
+            @Override
+            public void onError(Throwable t) {
+                close();
+            }
+            
+            @Override
+            public void onCompleted() {
+                close();
+                synchronized (this) {
+                    responseObserver.onCompleted();
+                }
+            }
+        }
+        
+        Subscription subscription = new Subscription();
+        call.setOnReadyHandler(subscription::drain);
+        call.setOnCancelHandler(subscription::close);
+        return subscription;
+    }
+    
+    // Called once per second for each location somebody is watching.
+    private AirQualityReading produceReading(String location) {
+        boolean anomaly = random.nextDouble() < 0.1;
+        
+        AirQualityReading reading = AirQualityReading.newBuilder()
+            .setCo2(anomaly ? 1500 + random.nextFloat() * 1000 : 
+                    400 + random.nextFloat() * 600)
+            .setNo2(anomaly ? 60 + random.nextFloat() * 40 : 
+                    random.nextFloat() * 50)
+            .setPm25(anomaly ? 50 + random.nextFloat() * 30 : 
+                     random.nextFloat() * 35)
+            .setTimestamp(String.valueOf(System.currentTimeMillis()))
+            .setAnomaly(anomaly)
+            .setSequence(sequences.computeIfAbsent(location, l -> new AtomicLong()).incrementAndGet())
+            .build();
+        
+        List<AirQualityReading> history = historicalData.computeIfAbsent(location,
+            l -> Collections.synchronizedList(new ArrayList<>()));
+        historyCache.append(System.currentTimeMillis(), reading, () -> history.add(reading), location);
+        sketches.add(location, Long.parseLong(reading.getTimestamp()), reading);
+        hierarchy.add(location, Long.parseLong(reading.getTimestamp()), reading);
+        
+        checkThresholds(reading, location);
+        return reading;
     }
     
     private void checkThresholds(AirQualityReading reading, String location) {
@@ -107,9 +394,19 @@ public class EnhancedAirQualityMonitor extends AirQualityMonitorGrpc.AirQualityM
             return;
         }
         
-        List<AirQualityReading> filtered = historicalData.get(location).stream()
-            .filter(r -> isWithinHours(r.getTimestamp(), hours))
-            .toList();
+        List<AirQualityReading> history = historicalData.get(location);
+        List<AirQualityReading> filtered = historyCache.get(location + "/" + hours, location,
+            Long.MIN_VALUE, Long.MAX_VALUE,
+            () -> {
+                HistoryWindow window = new HistoryWindow(hours * 3600 * 1000L);
+                synchronized (history) {
+                    history.stream()
+                        .filter(r -> isWithinHours(r.getTimestamp(), hours))
+                        .forEach(window.readings::addLast);
+                }
+                return window;
+            },
+            HistoryWindow::current);
         
         HistoricalDataResponse response = HistoricalDataResponse.newBuilder()
             .addAllReadings(filtered)
@@ -121,10 +418,134 @@ public class EnhancedAirQualityMonitor extends AirQualityMonitorGrpc.AirQualityM
     
     private boolean isWithinHours(String timestamp, int hours) {
         long time = Long.parseLong(timestamp);
-        long cutoff = System.currentTimeMillis() - (hours * 3600 * 1000);
+        long cutoff = System.currentTimeMillis() - (hours * 3600 * 1000L);
         return time >= cutoff;
     }
     
+    @Override
+    public void getPercentiles(PercentileRequest request, StreamObserver<PercentileResponse> responseObserver) {
+        AirQualitySketches.Metric metric;
+        try {
+            metric = AirQualitySketches.Metric.valueOf(request.getMetric().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Unknown metric: " + request.getMetric())
+                .asRuntimeException());
+            return;
+        }
+        
+        int hours = request.getHours() == 0 ? 24 : request.getHours();
+        if (hours < 0 || hours > AirQualitySketches.RETAINED_HOURS) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Hours must be between 1 and " + AirQualitySketches.RETAINED_HOURS)
+                .asRuntimeException());
+            return;
+        }
+        
+        List<Double> quantiles = request.getQuantilesCount() == 0
+            ? List.of(0.5, 0.95, 0.99) : request.getQuantilesList();
+        for (double q : quantiles) {
+            if (!(q >= 0 && q <= 1)) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                    .withDescription("Quantile out of range: " + q)
+                    .asRuntimeException());
+                return;
+            }
+        }
+        
+        // Hierarchy nodes stand for every room below them.
+        Set<String> locations = new HashSet<>();
+        for (String name : request.getLocationsList()) {
+            LocationHierarchy.Node node = hierarchy.find(name);
+            if (node == null) {
+                locations.add(name);
+            } else {
+                locations.addAll(hierarchy.locationsUnder(node));
+            }
+        }
+        
+        long now = System.currentTimeMillis();
+        QuantileSketch merged = locations.isEmpty() && request.getLocationsCount() > 0
+            ? new QuantileSketch()
+            : sketches.merged(locations, metric, now - hours * 3600 * 1000L, now);
+        
+        PercentileResponse.Builder response = PercentileResponse.newBuilder()
+            .setCount(merged.count());
+        for (double q : quantiles) {
+            response.addPercentiles(Percentile.newBuilder()
+                .setQuantile(q)
+                .setValue((float) merged.quantile(q)));
+        }
+        
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+    
+    @Override
+    public void registerLocation(LocationRegistration request, StreamObserver<LocationNode> responseObserver) {
+        LocationHierarchy.Node room;
+        try {
+            room = hierarchy.register(request.getLocation(), request.getFloor(),
+                request.getBuilding(), request.getSite());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription(e.getMessage())
+                .asRuntimeException());
+            return;
+        } catch (IllegalStateException e) {
+            responseObserver.onError(Status.FAILED_PRECONDITION
+                .withDescription(e.getMessage())
+                .asRuntimeException());
+            return;
+        }
+        
+        responseObserver.onNext(toLocationNode(room));
+        responseObserver.onCompleted();
+    }
+    
+    @Override
+    public void getLocationStats(LocationStatsRequest request, StreamObserver<LocationStats> responseObserver) {
+        LocationHierarchy.Node node = hierarchy.find(request.getNode());
+        if (node == null) {
+            responseObserver.onError(Status.NOT_FOUND
+                .withDescription("No such location or node: " + request.getNode())
+                .asRuntimeException());
+            return;
+        }
+        
+        int hours = request.getHours() == 0 ? 24 : request.getHours();
+        if (hours < 0 || hours > AirQualitySketches.RETAINED_HOURS) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Hours must be between 1 and " + AirQualitySketches.RETAINED_HOURS)
+                .asRuntimeException());
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        LocationHierarchy.Summary summary = hierarchy.summarize(node, now - hours * 3600 * 1000L, now);
+        LocationStats response = LocationStats.newBuilder()
+            .setNode(toLocationNode(node))
+            .setCount(summary.getCount())
+            .setAvgCo2((float) summary.getAverage(AirQualitySketches.Metric.CO2))
+            .setAvgNo2((float) summary.getAverage(AirQualitySketches.Metric.NO2))
+            .setAvgPm25((float) summary.getAverage(AirQualitySketches.Metric.PM25))
+            .setMaxCo2(summary.getMax(AirQualitySketches.Metric.CO2))
+            .setMaxNo2(summary.getMax(AirQualitySketches.Metric.NO2))
+            .setMaxPm25(summary.getMax(AirQualitySketches.Metric.PM25))
+            .build();
+        
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
+    }
+    
+    private static LocationNode toLocationNode(LocationHierarchy.Node node) {
+        return LocationNode.newBuilder()
+            .setPath(node.getPath())
+            .setLevel(node.getLevel().name())
+            .addAllChildren(node.getChildPaths())
+            .build();
+    }
+    
     @Override
     public void setAlertThresholds(ThresholdRequest request, 
                                  StreamObserver<ThresholdResponse> responseObserver) {
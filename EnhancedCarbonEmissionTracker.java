@@ -1,121 +1,743 @@
 package climate.emissions;
 
+import climate.cache.QueryResultCache;
+import io.grpc.Context;
+import io.grpc.Deadline;
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class EnhancedCarbonEmissionTracker extends CarbonEmissionTrackerGrpc.CarbonEmissionTrackerImplBase {
-    private final Map<String, List<UsageEntry>> deviceUsageData = new ConcurrentHashMap<>();
-    private final Map<String, Float> emissionFactors = new ConcurrentHashMap<>();
+    private static final float DEFAULT_FACTOR = 0.3f;
+    private static final int MAX_TREND_POINTS = 10_000;
+    private static final String FACTORS_FILE = "emission_factors.bin";
+    private static final String IDEMPOTENCY_FILE = "idempotency_keys.bin";
+    private static final String TOP_EMITTERS_FILE = "top_emitters.bin";
+    private static final String IMPORT_DIR_PROPERTY = "climate.emissions.importDir";
+    private static final String DEFAULT_IMPORT_DIR = "usage_imports";
+    private static final String HISTORY_DIR = "emission_history";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long SEGMENT_ENTRIES = 1 << 20;
+    private static final long SEGMENT_BYTES = SEGMENT_ENTRIES * 20;  // compacted segments stay under about this
+    private static final int COMPACTION_FAN_IN = 8;
+    private static final String LEGACY_DATA_FILE = "emission_data.ser";
+    private static final int DEFAULT_SUMMARY_EVERY_ENTRIES = 1000;
+    private static final int DEFAULT_SUMMARY_EVERY_SECONDS = 10;
+    private static final long SESSION_IDLE_MILLIS = 24 * 3600 * 1000L;
+    private static final long DETACHED_SESSION_IDLE_MILLIS = 3600 * 1000L;
+    private static final int TREND_CACHE_ENTRIES = 128;
+    private static final String ALL_DEVICES = "";
+    private static final int[] RECENT_TREND_DAYS = {14, 7, 2, 1};
+    private static final int DEDUP_PARTITIONS = 24;
+    private static final int DEDUP_INITIAL_KEYS = 1 << 14;
+    private static final double DEDUP_FALSE_POSITIVE_RATE = 1e-6;
+    
+    private final UsageStore usageStore = new UsageStore();
+    private final AtomicReference<EmissionFactorTable> factorTable = new AtomicReference<>();
+    private final AtomicReference<EnergySourceClassifier> classifier =
+        new AtomicReference<>(EnergySourceClassifier.defaults());
+    private final EmissionRollups rollups = new EmissionRollups();
+    private final EmissionRangeIndex rangeIndex = new EmissionRangeIndex();
+    private final TopEmitterTracker topEmitters = new TopEmitterTracker(
+        this::getEnergySource, (source, timestamp) -> factorTable.get().factorAt(source, timestamp));
+    private final UsageDeduplicator deduplicator = new UsageDeduplicator(
+        DEDUP_PARTITIONS, DEDUP_INITIAL_KEYS, DEDUP_FALSE_POSITIVE_RATE);
     private final ScheduledExecutorService dataPersistence = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService trendScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final TrendAnalyzer trendAnalyzer = new TrendAnalyzer(
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
     private final AtomicReference<List<EmissionTrend>> trends = new AtomicReference<>(new ArrayList<>());
+    private volatile long trendsAnalyzedAt = 0;
+    private final Map<String, IngestSession> ingestSessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService progressReporter = Executors.newSingleThreadScheduledExecutor();
+    private final BulkUsageImporter bulkImporter = new BulkUsageImporter(
+        usageStore, this::addImportedUsage, Runtime.getRuntime().availableProcessors());
+    private final ExecutorService bulkImports = Executors.newSingleThreadExecutor();
+    private final CompletableFuture<Void> historyLoaded = new CompletableFuture<>();
+    private final AtomicInteger segmentsLoaded = new AtomicInteger();
+    private final AtomicLong nextSegment = new AtomicLong();
+    private volatile int segmentCount = 0;
+    private final QueryResultCache<String, TrendBuckets, UsageDelta> trendCache =
+        new QueryResultCache<>("Emission trend", TREND_CACHE_ENTRIES, TrendBuckets::add);
     
-    private static class EmissionTrend {
-        String period;  
-        float co2;
-        float changePercent;
+    /** Usage sums for consecutive buckets starting at {@code starts}, the last running to {@code to}. */
+    private static class TrendBuckets {
+        final long[] starts;
+        final long to;
+        final double[] co2;
+        final double[] kwh;
+        
+        TrendBuckets(long[] starts, long to) {
+            this.starts = starts;
+            this.to = to;
+            this.co2 = new double[starts.length];
+            this.kwh = new double[starts.length];
+        }
+        
+        long end(int bucket) {
+            return bucket + 1 < starts.length ? starts[bucket + 1] : to;
+        }
+        
+        boolean add(long timestamp, UsageDelta delta) {
+            int bucket = Arrays.binarySearch(starts, timestamp);
+            if (bucket < 0) {
+                bucket = -bucket - 2;
+            }
+            co2[bucket] += delta.co2;
+            kwh[bucket] += delta.kwh;
+            return true;
+        }
+    }
+    
+    private static class UsageDelta {
+        final double kwh;
+        final double co2;
+        final String source;  // set on deltas priced by an ingest
+        
+        UsageDelta(double kwh, double co2) {
+            this(kwh, co2, null);
+        }
+        
+        UsageDelta(double kwh, double co2, String source) {
+            this.kwh = kwh;
+            this.co2 = co2;
+            this.source = source;
+        }
     }
     
     public EnhancedCarbonEmissionTracker() {
+        Map<String, Float> emissionFactors = new HashMap<>();
         emissionFactors.put("ELECTRICITY", 0.5f);
         emissionFactors.put("GAS", 0.2f);
         emissionFactors.put("SOLAR", 0.05f);
         emissionFactors.put("WIND", 0.01f);
+        factorTable.set(EmissionFactorTable.of(emissionFactors, DEFAULT_FACTOR));
         
-        loadPersistedData();
+        // Factors are small and price every entry, so they load first; history loads
+        // in the background while ingest is already being accepted.
+        loadFactors();
+        loadIdempotencyKeys();
+        loadTopEmitters();
+        loadHistory();
         
         dataPersistence.scheduleAtFixedRate(this::persistData, 1, 1, TimeUnit.HOURS);
+        dataPersistence.scheduleAtFixedRate(this::compactSegments, 6, 6, TimeUnit.HOURS);
+        dataPersistence.scheduleAtFixedRate(this::expireIngestSessions, 10, 10, TimeUnit.MINUTES);
+        progressReporter.scheduleAtFixedRate(usageStore::flushIdle, 1, 1, TimeUnit.SECONDS);
+        dataPersistence.scheduleAtFixedRate(trendCache::logStats, 10, 10, TimeUnit.MINUTES);
+        dataPersistence.scheduleAtFixedRate(deduplicator::logStats, 10, 10, TimeUnit.MINUTES);
         
-        dataPersistence.scheduleAtFixedRate(this::analyzeTrends, 0, 6, TimeUnit.HOURS);
+        historyLoaded.thenRun(() -> trendScheduler.scheduleAtFixedRate(this::analyzeTrends, 0, 6, TimeUnit.HOURS));
+    }
+    
+    /** Stops imports and background work and persists once more; call after the server has stopped. */
+    public void shutdown() {
+        bulkImports.shutdownNow();
+        bulkImporter.shutdown();
+        trendScheduler.shutdownNow();
+        progressReporter.shutdownNow();
+        dataPersistence.shutdownNow();
+        try {
+            dataPersistence.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        persistData();
     }
     
     @Override
     public StreamObserver<UsageEntry> logDeviceUsage(StreamObserver<EmissionSummary> responseObserver) {
         return new StreamObserver<UsageEntry>() {
-            final List<UsageEntry> entries = new ArrayList<>();
-            float totalCO2 = 0;
+            final UsageSummaryAggregator usage = new UsageSummaryAggregator();
+            final UsageStore.Writer history = usageStore.newWriter();
+            boolean failed = false;
             
             @Override
             public void onNext(UsageEntry entry) {
-                entries.add(entry);
+                if (failed) {
+                    return;
+                }
                 
-                float factor = emissionFactors.getOrDefault(
-                    getEnergySource(entry.getDeviceType()), 
-                    0.3f  
-                );
+                long timestamp;
+                try {
+                    timestamp = parseTimestamp(entry.getTimestamp());
+                } catch (NumberFormatException e) {
+                    failed = true;
+                    responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("Invalid timestamp: \"" + entry.getTimestamp() + "\"")
+                        .asRuntimeException());
+                    return;
+                }
                 
-                float co2 = entry.getDurationHours() * entry.getPowerRatingKw() * factor;
-                totalCO2 += co2;
-                
-                deviceUsageData.computeIfAbsent(entry.getDeviceType(), k -> new ArrayList<>())
-                    .add(entry);
+                ingest(entry, timestamp, usage, history);
             }
             
             @Override
             public void onError(Throwable t) {
+                history.close();
                 System.err.println("Error in device usage stream: " + t.getMessage());
             }
             
             @Override
             public void onCompleted() {
-                EmissionSummary summary = EmissionSummary.newBuilder()
-                    .setTotalCo2(totalCO2)
-                    .setSuggestions(generateSuggestions(totalCO2, entries))
-                    .setTrends(analyzeRecentTrends())
-                    .setCarbonOffset(getOffsetRecommendation(totalCO2))
-                    .build();
+                history.close();
+                if (failed) {
+                    return;
+                }
                 
-                responseObserver.onNext(summary);
+                responseObserver.onNext(buildSummary(usage));
                 responseObserver.onCompleted();
             }
         };
     }
     
     @Override
-    public void getEmissionTrends(TrendRequest request, StreamObserver<TrendResponse> responseObserver) {
-        TrendResponse response = TrendResponse.newBuilder()
-            .addAllTrends(trends.get())
+    public StreamObserver<UsageUpload> streamDeviceUsage(StreamObserver<IngestProgress> responseObserver) {
+        ServerCallStreamObserver<IngestProgress> call = (ServerCallStreamObserver<IngestProgress>) responseObserver;
+        return new StreamObserver<UsageUpload>() {
+            IngestSession session;
+            long generation;
+            boolean failed = false;
+            
+            @Override
+            public void onNext(UsageUpload upload) {
+                if (failed) {
+                    return;
+                }
+                if (session == null) {
+                    attach(upload);
+                }
+                if (!upload.hasEntry()) {
+                    return;
+                }
+                
+                synchronized (session) {
+                    if (!current()) {
+                        fail(superseded());
+                        return;
+                    }
+                    if (upload.getOffset() < session.nextOffset) {
+                        return;  // already ingested before a reconnect
+                    }
+                    if (upload.getOffset() > session.nextOffset) {
+                        fail(Status.OUT_OF_RANGE.withDescription(
+                            "Expected offset " + session.nextOffset + " but got " + upload.getOffset()));
+                        return;
+                    }
+                    
+                    UsageEntry entry = upload.getEntry();
+                    long timestamp;
+                    try {
+                        timestamp = parseTimestamp(entry.getTimestamp());
+                    } catch (NumberFormatException e) {
+                        fail(Status.INVALID_ARGUMENT.withDescription("Invalid timestamp: \"" + entry.getTimestamp() + "\""));
+                        return;
+                    }
+                    
+                    ingest(entry, timestamp, session.usage, session.history);
+                    session.nextOffset++;
+                    session.lastActive = System.currentTimeMillis();
+                    if (session.nextOffset - session.reportedOffset >= session.summaryEveryEntries) {
+                        report(false);
+                    }
+                }
+            }
+            
+            /*
+             * Resumes the named session, or starts one, and tells the client where
+             * to continue from. Taking a new generation fences any stream still
+             * attached to it, which fails with ABORTED on its next message.
+             */
+            private void attach(UsageUpload first) {
+                String sessionId = first.getSessionId().isEmpty()
+                    ? UUID.randomUUID().toString() : first.getSessionId();
+                int seconds = first.getSummaryEverySeconds() > 0
+                    ? first.getSummaryEverySeconds() : DEFAULT_SUMMARY_EVERY_SECONDS;
+                
+                while (session == null) {
+                    IngestSession candidate = ingestSessions.computeIfAbsent(sessionId,
+                        id -> new IngestSession(id, usageStore.newWriter()));
+                    synchronized (candidate) {
+                        if (candidate.ended) {
+                            ingestSessions.remove(sessionId, candidate);  // completed or expired meanwhile
+                            continue;
+                        }
+                        session = candidate;
+                        generation = ++session.generation;
+                        if (session.reporter != null) {
+                            session.reporter.cancel(false);
+                        }
+                        session.summaryEveryEntries = first.getSummaryEveryEntries() > 0
+                            ? first.getSummaryEveryEntries() : DEFAULT_SUMMARY_EVERY_ENTRIES;
+                        session.lastActive = System.currentTimeMillis();
+                        session.closed = false;
+                        session.reporter = progressReporter.scheduleAtFixedRate(
+                            () -> reportPeriodically(candidate), seconds, seconds, TimeUnit.SECONDS);
+                        report(false);
+                    }
+                }
+            }
+            
+            /*
+             * An exception thrown here would cancel the task without a trace, so a
+             * stream that was cancelled or cannot be written to is detached instead,
+             * leaving the session for the client to resume.
+             */
+            private void reportPeriodically(IngestSession candidate) {
+                synchronized (candidate) {
+                    if (!current()) {
+                        return;
+                    }
+                    if (call.isCancelled()) {
+                        detach();
+                        return;
+                    }
+                    if (candidate.nextOffset > candidate.reportedOffset) {
+                        try {
+                            report(false);
+                        } catch (RuntimeException e) {
+                            System.err.println("Failed to report progress of session " + candidate.id + ": " + e.getMessage());
+                            detach();
+                        }
+                    }
+                }
+            }
+            
+            // Callers hold the session lock.
+            private boolean current() {
+                return !session.ended && session.generation == generation;
+            }
+            
+            private Status superseded() {
+                return Status.ABORTED.withDescription(
+                    "Session " + session.id + " was resumed by another stream or has expired");
+            }
+            
+            // Callers hold the session lock.
+            private void report(boolean completed) {
+                session.history.flush();
+                session.reportedOffset = session.nextOffset;
+                responseObserver.onNext(IngestProgress.newBuilder()
+                    .setSessionId(session.id)
+                    .setAckedOffset(session.nextOffset)
+                    .setSummary(buildSummary(session.usage))
+                    .setCompleted(completed)
+                    .build());
+            }
+            
+            private void fail(Status status) {
+                failed = true;
+                detach();
+                responseObserver.onError(status.asRuntimeException());
+            }
+            
+            // Leaves the session for the client to resume, unless a newer stream already has.
+            private void detach() {
+                if (session == null) {
+                    return;
+                }
+                synchronized (session) {
+                    if (current()) {
+                        session.reporter.cancel(false);
+                        session.history.flush();
+                        session.closed = true;
+                        session.lastActive = System.currentTimeMillis();
+                    }
+                }
+            }
+            
+            @Override
+            public void onError(Throwable t) {
+                // The session is kept so the client can resume from the last acknowledged offset.
+                detach();
+                System.err.println("Error in device usage stream: " + t.getMessage());
+            }
+            
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+                if (session == null) {
+                    responseObserver.onCompleted();
+                    return;
+                }
+                synchronized (session) {
+                    if (!current()) {
+                        fail(superseded());
+                        return;
+                    }
+                    detach();
+                    report(true);
+                    session.history.close();
+                    session.ended = true;
+                }
+                ingestSessions.remove(session.id, session);
+                responseObserver.onCompleted();
+            }
+        };
+    }
+    
+    private void ingest(UsageEntry entry, long timestamp, UsageSummaryAggregator usage, UsageStore.Writer history) {
+        // Under the writer's lock, so a flush after persistData snapshots the keys holds every entry they cover.
+        synchronized (history) {
+            if (!entry.getIdempotencyKey().isEmpty()
+                    && !deduplicator.firstSeen(entry.getIdempotencyKey(), System.currentTimeMillis())) {
+                return;  // resent after a broken stream
+            }
+            history.append(entry.getDeviceType(), timestamp,
+                entry.getDurationHours(), entry.getPowerRatingKw());
+        }
+        
+        float kwh = entry.getDurationHours() * entry.getPowerRatingKw();
+        UsageDelta priced = addToAggregates(entry.getDeviceType(), timestamp, kwh);
+        usage.add(entry.getDeviceType(), priced.source, kwh, (float) priced.co2);
+        // Only devices reported by id are ranked; a type shared by many devices is not one emitter.
+        if (!entry.getDeviceId().isEmpty()) {
+            usage.addDeviceId(entry.getDeviceId());
+            topEmitters.add(entry.getDeviceId(), entry.getDeviceType(), timestamp, kwh);
+        }
+    }
+    
+    @Override
+    public void importUsageFile(ImportRequest request, StreamObserver<ImportResponse> responseObserver) {
+        Path path;
+        try {
+            path = resolveImport(request.getPath());
+        } catch (IOException e) {
+            responseObserver.onError(Status.NOT_FOUND
+                .withDescription("No such file in the import directory: " + request.getPath())
+                .asRuntimeException());
+            return;
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.PERMISSION_DENIED
+                .withDescription(e.getMessage())
+                .asRuntimeException());
+            return;
+        }
+        
+        BulkUsageImporter.Format format;
+        try {
+            format = request.getFormat().isEmpty()
+                ? (request.getPath().toLowerCase().endsWith(".csv")
+                    ? BulkUsageImporter.Format.CSV : BulkUsageImporter.Format.DELIMITED_PROTO)
+                : BulkUsageImporter.Format.valueOf(request.getFormat().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Unknown import format: " + request.getFormat())
+                .asRuntimeException());
+            return;
+        }
+        
+        // Imports can take minutes, so they run one at a time off the gRPC thread.
+        try {
+            bulkImports.execute(() -> {
+                long start = System.currentTimeMillis();
+                try {
+                    BulkUsageImporter.Result result = bulkImporter.importFile(path, format);
+                    responseObserver.onNext(ImportResponse.newBuilder()
+                        .setRowsImported(result.getImported())
+                        .setRowsRejected(result.getRejected())
+                        .setElapsedMillis(System.currentTimeMillis() - start)
+                        .build());
+                    responseObserver.onCompleted();
+                } catch (IOException | RuntimeException e) {
+                    responseObserver.onError(Status.INTERNAL
+                        .withDescription("Import of " + request.getPath() + " failed: " + e.getMessage())
+                        .asRuntimeException());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            responseObserver.onError(Status.UNAVAILABLE
+                .withDescription("Server is shutting down")
+                .asRuntimeException());
+        }
+    }
+    
+    /**
+     * Resolves a client-supplied path against the import directory. The path is
+     * checked lexically before the file system is touched, then again once
+     * symlinks are followed, so nothing outside the directory can be read.
+     */
+    private static Path resolveImport(String requested) throws IOException {
+        Path root = Paths.get(System.getProperty(IMPORT_DIR_PROPERTY, DEFAULT_IMPORT_DIR)).toAbsolutePath().normalize();
+        Path relative = Paths.get(requested);
+        Path path = root.resolve(relative).normalize();
+        if (relative.isAbsolute() || !path.startsWith(root) || path.equals(root)) {
+            throw new IllegalArgumentException("Imports must name a file inside the import directory: " + requested);
+        }
+        Path real = path.toRealPath();
+        if (!real.startsWith(root.toRealPath())) {
+            throw new IllegalArgumentException("Import path leaves the import directory: " + requested);
+        }
+        if (!Files.isRegularFile(real)) {
+            throw new NoSuchFileException(requested);
+        }
+        return real;
+    }
+    
+    // Imported usage arrives pre-summed per device type and hour, which is all the aggregates keep.
+    private void addImportedUsage(String deviceType, long hourStart, double kwh) {
+        addToAggregates(deviceType, hourStart, kwh);
+    }
+    
+    /*
+     * Writes go through the trend cache so cached results covering them are
+     * extended in place. Usage is priced inside the rollup's hourly cell lock,
+     * the same lock a reprice takes, so it is either repriced with its hour or
+     * priced from the new factors; it can never keep a replaced factor.
+     */
+    private UsageDelta addToAggregates(String deviceType, long timestamp, double kwh) {
+        Supplier<UsageDelta> write = () -> {
+            EmissionRollups.Priced priced = rollups.add(deviceType, timestamp, kwh, this::getEnergySource,
+                (source, hour) -> factorTable.get().factorAt(source, hour));
+            rangeIndex.add(deviceType, timestamp, kwh, priced.getCo2());
+            return new UsageDelta(kwh, priced.getCo2(), priced.getSource());
+        };
+        if (deviceType.equals(ALL_DEVICES)) {
+            return trendCache.append(timestamp, write, ALL_DEVICES);
+        }
+        return trendCache.append(timestamp, write, deviceType, ALL_DEVICES);
+    }
+    
+    /*
+     * Sessions left by a broken stream wait DETACHED_SESSION_IDLE_MILLIS for
+     * their client to resume; attached ones are only dropped once their stream
+     * has been silent for SESSION_IDLE_MILLIS, and that stream is fenced.
+     */
+    private void expireIngestSessions() {
+        long now = System.currentTimeMillis();
+        ingestSessions.values().removeIf(session -> {
+            synchronized (session) {
+                long idle = now - session.lastActive;
+                if (idle < (session.closed ? DETACHED_SESSION_IDLE_MILLIS : SESSION_IDLE_MILLIS)) {
+                    return false;
+                }
+                if (session.reporter != null) {
+                    session.reporter.cancel(false);
+                }
+                session.history.close();
+                session.ended = true;
+                return true;
+            }
+        });
+    }
+    
+    private EmissionSummary buildSummary(UsageSummaryAggregator usage) {
+        float totalCO2 = usage.getTotalCO2();
+        return EmissionSummary.newBuilder()
+            .setTotalCo2(totalCO2)
+            .setSuggestions(generateSuggestions(totalCO2, usage))
+            .setTrends(analyzeRecentTrends())
+            .setCarbonOffset(getOffsetRecommendation(totalCO2))
             .build();
+    }
+    
+    @Override
+    public void getEmissionTrends(TrendRequest request, StreamObserver<TrendResponse> responseObserver) {
+        if (request.getFromMillis() == 0) {
+            afterHistory(responseObserver, complete -> {
+                responseObserver.onNext(TrendResponse.newBuilder()
+                    .addAllTrends(computeTrends(complete))
+                    .addAllAnalysis(trends.get())
+                    .setAnalyzedAtMillis(trendsAnalyzedAt)
+                    .setPartial(!complete)
+                    .setLoadProgress(loadProgress())
+                    .build());
+                responseObserver.onCompleted();
+            });
+            return;
+        }
         
-        responseObserver.onNext(response);
+        // The index is hourly, so windows and buckets are aligned to whole hours.
+        long from = EmissionRollups.floor(request.getFromMillis(), EmissionRollups.HOUR_MILLIS);
+        long to = EmissionRollups.ceil(
+            request.getToMillis() == 0 ? System.currentTimeMillis() : request.getToMillis(),
+            EmissionRollups.HOUR_MILLIS);
+        long bucket = request.getBucketMillis() == 0 ? to - from : request.getBucketMillis();
+        
+        if (to <= from || bucket <= 0 || bucket % EmissionRollups.HOUR_MILLIS != 0
+                || (to - from) / bucket >= MAX_TREND_POINTS) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Invalid trend window [" + request.getFromMillis() + ", "
+                    + request.getToMillis() + ") with bucket " + request.getBucketMillis())
+                .asRuntimeException());
+            return;
+        }
+        
+        String deviceType = request.getDeviceType().isEmpty() ? null : request.getDeviceType();
+        long[] starts = new long[(int) ((to - from + bucket - 1) / bucket)];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = from + i * bucket;
+        }
+        
+        afterHistory(responseObserver, complete -> {
+            TrendResponse.Builder response = cachedTrend(complete,
+                from + "/" + to + "/" + bucket + "/" + request.getDeviceType(),
+                request.getDeviceType(), starts, to,
+                (start, end) -> {
+                    EmissionRangeIndex.Sum sum = rangeIndex.sum(start, end, deviceType);
+                    return new UsageDelta(sum.getKwh(), sum.getCo2());
+                },
+                buckets -> {
+                    TrendResponse.Builder points = TrendResponse.newBuilder();
+                    for (int i = 0; i < buckets.starts.length; i++) {
+                        points.addPoints(TrendPoint.newBuilder()
+                            .setStartMillis(buckets.starts[i])
+                            .setCo2((float) buckets.co2[i])
+                            .setKwh((float) buckets.kwh[i]));
+                    }
+                    return points;
+                });
+            
+            responseObserver.onNext(response
+                .setPartial(!complete)
+                .setLoadProgress(loadProgress())
+                .build());
+            responseObserver.onCompleted();
+        });
+    }
+    
+    @Override
+    public void getTopEmitters(TopEmittersRequest request, StreamObserver<TopEmittersResponse> responseObserver) {
+        TopEmitterTracker.Period period;
+        try {
+            period = TopEmitterTracker.Period.valueOf(
+                request.getPeriod().isEmpty() ? "DAY" : request.getPeriod().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Unknown period: " + request.getPeriod())
+                .asRuntimeException());
+            return;
+        }
+        
+        long at = request.getAtMillis() == 0 ? System.currentTimeMillis() : request.getAtMillis();
+        int limit = request.getLimit() <= 0 ? 10 : request.getLimit();
+        
+        // Counters are restored from their own file before serving, so they never wait for history.
+        TopEmittersResponse.Builder response = TopEmittersResponse.newBuilder()
+            .setLoadProgress(1);
+        for (TopEmitterTracker.Emitter emitter : topEmitters.top(period, at, limit)) {
+            response.addEmitters(Emitter.newBuilder()
+                .setId(emitter.getId())
+                .setCo2((float) emitter.getCo2())
+                .setMaxError((float) emitter.getMaxError()));
+        }
+        
+        responseObserver.onNext(response.build());
         responseObserver.onCompleted();
     }
     
     @Override
     public void setEmissionFactors(FactorRequest request, StreamObserver<FactorResponse> responseObserver) {
-        request.getFactorsMap().forEach((source, factor) -> {
-            emissionFactors.put(source, factor);
-        });
+        long now = System.currentTimeMillis();
+        long effectiveFrom = request.getEffectiveFromMillis() == 0 ? now : request.getEffectiveFromMillis();
+        
+        // Only the hours priced by the replaced versions are recomputed.
+        synchronized (factorTable) {
+            EmissionFactorTable.Change change = factorTable.get()
+                .withFactors(request.getFactorsMap(), effectiveFrom);
+            factorTable.set(change.getTable());
+            reprice(change.getFrom(), change.getTo());
+        }
         
         FactorResponse response = FactorResponse.newBuilder()
             .setStatus("Emission factors updated")
-            .putAllCurrentFactors(emissionFactors)
+            .putAllCurrentFactors(factorTable.get().factorsAt(now))
             .build();
         
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
     
-    private String generateSuggestions(float totalCO2, List<UsageEntry> entries) {
+    @Override
+    public void setClassificationRules(ClassificationRulesRequest request,
+                                       StreamObserver<ClassificationRulesResponse> responseObserver) {
+        LinkedHashMap<String, List<String>> rules = new LinkedHashMap<>();
+        for (SourceRule rule : request.getRulesList()) {
+            rules.computeIfAbsent(rule.getEnergySource(), k -> new ArrayList<>())
+                .addAll(rule.getKeywordsList());
+        }
+        
+        EnergySourceClassifier compiled;
+        try {
+            compiled = new EnergySourceClassifier(rules,
+                request.getDefaultSource().isEmpty() ? "ELECTRICITY" : request.getDefaultSource());
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription(e.getMessage())
+                .asRuntimeException());
+            return;
+        }
+        
+        synchronized (factorTable) {
+            classifier.set(compiled);
+            reprice(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        
+        ClassificationRulesResponse.Builder response = ClassificationRulesResponse.newBuilder()
+            .setStatus("Classification rules updated")
+            .setDefaultSource(compiled.getDefaultSource());
+        compiled.getRules().forEach((source, keywords) -> response.addRules(SourceRule.newBuilder()
+            .setEnergySource(source)
+            .addAllKeywords(keywords)));
+        
+        responseObserver.onNext(response.build());
+        responseObserver.onCompleted();
+    }
+    
+    /*
+     * Brings everything derived from prices up to date after the factors or
+     * rules covering [from, to) changed. Callers hold the factorTable lock and
+     * have already installed the new table or classifier.
+     */
+    private void reprice(long from, long to) {
+        rollups.reprice(from, to, this::getEnergySource, factorTable.get()::factorAt, rangeIndex::adjustCo2);
+        topEmitters.reprice(from, to);
+        trendCache.invalidateAll();
+        // Trends are computed from history rather than the aggregates, so they are rerun.
+        if (historyLoaded.isDone()) {
+            trendScheduler.execute(this::analyzeTrends);
+        }
+    }
+    
+    private String generateSuggestions(float totalCO2, UsageSummaryAggregator usage) {
         StringBuilder suggestions = new StringBuilder();
         
         if (totalCO2 > 10) {
             suggestions.append("High emissions detected! ");
             
-            Optional<UsageEntry> worstDevice = entries.stream()
-                .max(Comparator.comparing(e -> 
-                    e.getDurationHours() * e.getPowerRatingKw()));
-            
-            worstDevice.ifPresent(entry -> {
+            if (usage.hasWorstDevice()) {
                 suggestions.append(String.format(
                     "Your %s is using %.1f kWh. ", 
-                    entry.getDeviceType(),
-                    entry.getDurationHours() * entry.getPowerRatingKw()
+                    usage.getWorstDeviceType(),
+                    usage.getWorstDeviceKwh()
                 ));
-            });
+            }
+            
+            TopEmitterTracker.Emitter heaviest = topEmitters.heaviest(
+                TopEmitterTracker.Period.DAY, System.currentTimeMillis(), usage.getDeviceIds());
+            if (heaviest != null) {
+                suggestions.append(String.format(
+                    "Your top emitter today is %s with %.1f kg CO2. ",
+                    heaviest.getId(),
+                    heaviest.getCo2()
+                ));
+            }
             
             suggestions.append("Consider using energy-efficient models or reducing usage time.");
         } else if (totalCO2 > 5) {
@@ -124,7 +746,7 @@ public class EnhancedCarbonEmissionTracker extends CarbonEmissionTrackerGrpc.Car
             suggestions.append("Good job! Your emissions are low.");
         }
         
-        if (entries.stream().anyMatch(e -> getEnergySource(e.getDeviceType()).equals("ELECTRICITY"))) {
+        if (usage.usesElectricity()) {
             suggestions.append(" Consider switching to renewable energy sources.");
         }
         
@@ -132,14 +754,7 @@ public class EnhancedCarbonEmissionTracker extends CarbonEmissionTrackerGrpc.Car
     }
     
     private String getEnergySource(String deviceType) {
-        if (deviceType.toLowerCase().contains("solar") || 
-            deviceType.toLowerCase().contains("pv")) {
-            return "SOLAR";
-        }
-        if (deviceType.toLowerCase().contains("gas")) {
-            return "GAS";
-        }
-        return "ELECTRICITY";  // default
+        return classifier.get().classify(deviceType);
     }
     
     private String getOffsetRecommendation(float totalCO2) {
@@ -151,37 +766,90 @@ public class EnhancedCarbonEmissionTracker extends CarbonEmissionTrackerGrpc.Car
     }
     
     private void analyzeTrends() {
+        long now = System.currentTimeMillis();
         List<EmissionTrend> newTrends = new ArrayList<>();
         
-        EmissionTrend daily = new EmissionTrend();
-        daily.period = "DAY";
-        daily.co2 = calculatePeriodCO2(1);
-        daily.changePercent = calculateChangePercent(daily.co2, calculatePeriodCO2(2));
-        newTrends.add(daily);
-        
-        EmissionTrend weekly = new EmissionTrend();
-        weekly.period = "WEEK";
-        weekly.co2 = calculatePeriodCO2(7);
-        weekly.changePercent = calculateChangePercent(weekly.co2, calculatePeriodCO2(14));
-        newTrends.add(weekly);
+        for (TrendAnalyzer.Trend trend : trendAnalyzer.analyze(
+                usageStore.snapshot(), this::getEnergySource, factorTable.get(), now)) {
+            EmissionTrend.Builder builder = EmissionTrend.newBuilder()
+                .setPeriod(trend.getPeriod().name())
+                .setCo2((float) trend.getCo2())
+                .setChangePercent(calculateChangePercent((float) trend.getCo2(), (float) trend.getPreviousCo2()));
+            trend.getCo2BySource().forEach((source, co2) -> builder.putCo2BySource(source, co2.floatValue()));
+            newTrends.add(builder.build());
+        }
         
         trends.set(newTrends);
+        trendsAnalyzedAt = now;
     }
     
-    private float calculatePeriodCO2(int daysBack) {
-        long cutoff = System.currentTimeMillis() - (daysBack * 24 * 3600 * 1000L);
+    private List<EmissionTrend> computeTrends(boolean cacheable) {
+        long now = System.currentTimeMillis();
+        long[] starts = new long[RECENT_TREND_DAYS.length];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = EmissionRollups.floor(now - RECENT_TREND_DAYS[i] * EmissionRollups.DAY_MILLIS,
+                EmissionRollups.HOUR_MILLIS);
+        }
         
-        return deviceUsageData.values().stream()
-            .flatMap(List::stream)
-            .filter(entry -> Long.parseLong(entry.getTimestamp()) >= cutoff)
-            .mapToFloat(entry -> {
-                float factor = emissionFactors.getOrDefault(
-                    getEnergySource(entry.getDeviceType()), 
-                    0.3f
-                );
-                return entry.getDurationHours() * entry.getPowerRatingKw() * factor;
-            })
-            .sum();
+        // Buckets run oldest first: the last 14 days minus 7, 7 minus 2, 2 minus 1, then the last day.
+        return cachedTrend(cacheable, "recent@" + EmissionRollups.floor(now, EmissionRollups.HOUR_MILLIS),
+            ALL_DEVICES, starts, Long.MAX_VALUE,
+            (start, end) -> {
+                EmissionRollups.Totals totals = rollups.totals(start, end, null);
+                return new UsageDelta(totals.getKwh(), totals.getCo2());
+            },
+            buckets -> {
+                float dailyCO2 = (float) buckets.co2[3];
+                float twoDayCO2 = dailyCO2 + (float) buckets.co2[2];
+                float weeklyCO2 = twoDayCO2 + (float) buckets.co2[1];
+                float twoWeekCO2 = weeklyCO2 + (float) buckets.co2[0];
+                
+                List<EmissionTrend> newTrends = new ArrayList<>();
+                newTrends.add(EmissionTrend.newBuilder()
+                    .setPeriod("DAY")
+                    .setCo2(dailyCO2)
+                    .setChangePercent(calculateChangePercent(dailyCO2, twoDayCO2))
+                    .build());
+                newTrends.add(EmissionTrend.newBuilder()
+                    .setPeriod("WEEK")
+                    .setCo2(weeklyCO2)
+                    .setChangePercent(calculateChangePercent(weeklyCO2, twoWeekCO2))
+                    .build());
+                return newTrends;
+            });
+    }
+    
+    /**
+     * Answers a trend query from the cache, keyed on its hour-aligned window. Partial
+     * answers given while history is still loading are computed but not cached.
+     */
+    private <R> R cachedTrend(boolean cacheable, String key, String deviceType, long[] starts, long to,
+                              BucketSum sum, Function<TrendBuckets, R> view) {
+        Supplier<TrendBuckets> loader = () -> {
+            TrendBuckets buckets = new TrendBuckets(starts, to);
+            for (int i = 0; i < starts.length; i++) {
+                UsageDelta total = sum.between(starts[i], buckets.end(i));
+                buckets.co2[i] = total.co2;
+                buckets.kwh[i] = total.kwh;
+            }
+            return buckets;
+        };
+        if (!cacheable) {
+            return view.apply(loader.get());
+        }
+        return trendCache.get(key, deviceType, starts[0], to, loader, view);
+    }
+    
+    private interface BucketSum {
+        UsageDelta between(long from, long to);
+    }
+    
+    // An entry without a timestamp is rejected rather than dated now, which would price it in the wrong hour.
+    private static long parseTimestamp(String timestamp) {
+        if (timestamp.isEmpty()) {
+            throw new NumberFormatException("Missing timestamp");
+        }
+        return Long.parseLong(timestamp);
     }
     
     private float calculateChangePercent(float current, float previous) {
@@ -189,29 +857,358 @@ public class EnhancedCarbonEmissionTracker extends CarbonEmissionTrackerGrpc.Car
         return ((current - previous) / previous) * 100;
     }
     
-    private void persistData() {
-        try (ObjectOutputStream out = new ObjectOutputStream(
-            new FileOutputStream("emission_data.ser"))) {
+    /**
+     * Answers once history has finished loading, or once the call's deadline is
+     * nearly up, passing whether history was complete. Calls without a deadline
+     * answer at once. Nothing blocks meanwhile: the gRPC thread returns straight
+     * away and the answer is built on the common pool when the wait ends.
+     */
+    private <T> void afterHistory(StreamObserver<T> responseObserver, Consumer<Boolean> respond) {
+        Deadline deadline = Context.current().getDeadline();
+        if (historyLoaded.isDone() || deadline == null) {
+            respond.accept(historyLoaded.isDone());
+            return;
+        }
+        // Leave a little of the deadline to build and send the partial answer.
+        historyLoaded.thenApply(loaded -> true)
+            .completeOnTimeout(false, Math.max(0, deadline.timeRemaining(TimeUnit.MILLISECONDS) - 50),
+                TimeUnit.MILLISECONDS)
+            .thenAcceptAsync(respond)
+            .exceptionally(e -> {
+                responseObserver.onError(Status.INTERNAL
+                    .withDescription("Query failed: " + e.getMessage())
+                    .asRuntimeException());
+                return null;
+            });
+    }
+    
+    private float loadProgress() {
+        return historyLoaded.isDone() || segmentCount == 0 ? 1 : (float) segmentsLoaded.get() / segmentCount;
+    }
+    
+    /*
+     * Segments are never modified: each persist appends the chunks published
+     * since the last one as new segments, and compaction replaces runs of them
+     * with a new one, so a crash at any point leaves every entry in at most one
+     * live segment. That also makes it safe to persist while history is still
+     * loading.
+     *
+     * Idempotency keys are snapshotted first but only put in place once every
+     * entry buffered at that point is in a segment, so a key is never persisted
+     * without its entry and a resend after a crash is not wrongly dropped.
+     */
+    private synchronized void persistData() {
+        try {
+            persistFactors();
+            
+            File keys = new File(IDEMPOTENCY_FILE);
+            File keysTmp = new File(IDEMPOTENCY_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(keysTmp)))) {
+                deduplicator.writeTo(out);
+            }
+            usageStore.flushAll();
+            
+            File emitters = new File(TOP_EMITTERS_FILE);
+            File emittersTmp = new File(TOP_EMITTERS_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(emittersTmp)))) {
+                topEmitters.writeTo(out);
+            }
+            Files.move(emittersTmp.toPath(), emitters.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            long entries = 0;
+            List<UsageStore.ColumnChunk> current = new ArrayList<>();
+            for (UsageStore.ColumnChunk chunk : usageStore.unpersisted()) {
+                current.add(chunk);
+                entries += chunk.size();
+                if (entries >= SEGMENT_ENTRIES) {
+                    writeSegment(current);
+                    current = new ArrayList<>();
+                    entries = 0;
+                }
+            }
+            if (!current.isEmpty()) {
+                writeSegment(current);
+            }
             
-            out.writeObject(deviceUsageData);
-            out.writeObject(emissionFactors);
+            Files.move(keysTmp.toPath(), keys.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             System.err.println("Failed to persist data: " + e.getMessage());
         }
     }
     
+    private void persistFactors() throws IOException {
+        File factors = new File(FACTORS_FILE);
+        File factorsTmp = new File(FACTORS_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(factorsTmp)))) {
+            factorTable.get().writeTo(out);
+        }
+        Files.move(factorsTmp.toPath(), factors.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // Written under a fresh number and renamed into place whole; the chunks are only retired once it is.
+    private void writeSegment(List<UsageStore.ColumnChunk> chunks) throws IOException {
+        File dir = new File(HISTORY_DIR);
+        dir.mkdirs();
+        File file = new File(dir, "segment-" + nextSegment.getAndIncrement() + SEGMENT_SUFFIX);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmp)))) {
+            usageStore.writeTo(out, chunks);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        usageStore.markPersisted(chunks);
+    }
+    
+    /*
+     * Hourly persists leave many small segments. Once COMPACTION_FAN_IN
+     * consecutive ones fit in SEGMENT_BYTES together, they are rewritten as
+     * one, so history stays a few files per million entries and each entry is
+     * rewritten only a few times. Waits for history to load, since loading
+     * reads the segments this deletes.
+     */
+    private synchronized void compactSegments() {
+        if (!historyLoaded.isDone()) {
+            return;
+        }
+        List<File> run = new ArrayList<>();
+        long runBytes = 0;
+        for (File segment : liveSegments()) {
+            if (segmentRange(segment) == null) {
+                continue;  // not numbered, so never compacted
+            }
+            if (!run.isEmpty() && runBytes + segment.length() > SEGMENT_BYTES) {
+                compact(run);
+                run = new ArrayList<>();
+                runBytes = 0;
+            }
+            run.add(segment);
+            runBytes += segment.length();
+        }
+        compact(run);
+    }
+    
+    // Written under a name covering the inputs' numbers and renamed into place before they are deleted.
+    private void compact(List<File> inputs) {
+        if (inputs.size() < COMPACTION_FAN_IN) {
+            return;
+        }
+        long from = segmentRange(inputs.get(0))[0];
+        long to = segmentRange(inputs.get(inputs.size() - 1))[1];
+        File dir = new File(HISTORY_DIR);
+        File file = new File(dir, "segment-" + from + "-" + to + SEGMENT_SUFFIX);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            UsageStore merged = new UsageStore();
+            for (File input : inputs) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(input)))) {
+                    merged.readFrom(in, true);
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)))) {
+                merged.writeTo(out, merged.snapshot().chunks());
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to compact segments " + from + " to " + to + ": " + e.getMessage());
+            tmp.delete();
+            return;
+        }
+        for (File input : inputs) {
+            if (!input.delete()) {
+                System.err.println("Could not delete compacted segment " + input + "; it is removed on the next start");
+            }
+        }
+    }
+    
+    /*
+     * Segment files to load, oldest first. A compacted segment is named for the
+     * range of numbers it replaced, so any segment inside another's range was
+     * already compacted and only survived a crash before its deletion; it is
+     * deleted now rather than loaded twice.
+     */
+    private static List<File> liveSegments() {
+        File[] files = new File(HISTORY_DIR).listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        List<File> numbered = new ArrayList<>();
+        List<File> live = new ArrayList<>();
+        for (File file : files == null ? new File[0] : files) {
+            (segmentRange(file) != null ? numbered : live).add(file);
+        }
+        numbered.sort(Comparator.comparingLong((File file) -> segmentRange(file)[0])
+            .thenComparing(Comparator.comparingLong((File file) -> segmentRange(file)[1]).reversed()));
+        long coveredTo = Long.MIN_VALUE;
+        for (File segment : numbered) {
+            long[] range = segmentRange(segment);
+            if (range[1] <= coveredTo) {
+                if (!segment.delete()) {
+                    System.err.println("Could not delete compacted segment " + segment);
+                }
+                continue;
+            }
+            live.add(segment);
+            coveredTo = range[1];
+        }
+        return live;
+    }
+    
+    // The numbers a segment covers: {n, n} for "segment-n" and {from, to} for a compacted "segment-from-to".
+    private static long[] segmentRange(File file) {
+        String name = file.getName();
+        if (!name.startsWith("segment-")) {
+            return null;
+        }
+        String[] numbers = name.substring("segment-".length(), name.length() - SEGMENT_SUFFIX.length()).split("-", -1);
+        try {
+            long from = Long.parseLong(numbers[0]);
+            long to = Long.parseLong(numbers[numbers.length - 1]);
+            return numbers.length <= 2 && 0 <= from && from <= to ? new long[]{from, to} : null;
+        } catch (NumberFormatException e) {
+            return null;  // not a numbered segment
+        }
+    }
+    
+    private void rebuildAggregates(List<UsageStore.ColumnChunk> chunks) {
+        for (UsageStore.ColumnChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size; i++) {
+                String deviceType = usageStore.deviceType(chunk.deviceCodes[i]);
+                float kwh = chunk.durationHours[i] * chunk.powerKw[i];
+                addToAggregates(deviceType, chunk.timestamps[i], kwh);
+            }
+        }
+    }
+    
+    private void loadFactors() {
+        File file = new File(FACTORS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)))) {
+            
+            factorTable.set(EmissionFactorTable.readFrom(in, DEFAULT_FACTOR));
+        } catch (IOException e) {
+            System.err.println("Failed to load emission factors: " + e.getMessage());
+        }
+    }
+    
+    private void loadIdempotencyKeys() {
+        File file = new File(IDEMPOTENCY_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)))) {
+            
+            deduplicator.readFrom(in, System.currentTimeMillis());
+        } catch (IOException e) {
+            System.err.println("Failed to load idempotency keys: " + e.getMessage());
+        }
+    }
+    
+    private void loadTopEmitters() {
+        File file = new File(TOP_EMITTERS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)))) {
+            
+            topEmitters.readFrom(in);
+        } catch (IOException e) {
+            System.err.println("Failed to load top emitters: " + e.getMessage());
+        }
+    }
+    
+    // Segments are independent, so they are read and aggregated in parallel.
+    private void loadHistory() {
+        List<Runnable> loads = new ArrayList<>();
+        for (File segment : liveSegments()) {
+            long[] range = segmentRange(segment);
+            if (range != null) {
+                nextSegment.accumulateAndGet(range[1] + 1, Math::max);
+            }
+            loads.add(() -> loadSegment(segment));
+        }
+        if (loads.isEmpty() && new File(LEGACY_DATA_FILE).exists()) {
+            loads.add(this::loadLegacyData);
+        }
+        segmentCount = loads.size();
+        
+        ExecutorService loaders = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(loads.size(), Runtime.getRuntime().availableProcessors())));
+        CompletableFuture.allOf(loads.stream()
+                .map(load -> CompletableFuture.runAsync(() -> {
+                    try {
+                        load.run();
+                    } finally {
+                        segmentsLoaded.incrementAndGet();
+                    }
+                }, loaders))
+                .toArray(CompletableFuture[]::new))
+            .whenComplete((ignored, e) -> {
+                loaders.shutdown();
+                historyLoaded.complete(null);
+            });
+    }
+    
+    private void loadSegment(File segment) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(segment)))) {
+            
+            rebuildAggregates(usageStore.readFrom(in, true));
+        } catch (IOException e) {
+            // Set aside for inspection; its number is never reused.
+            System.err.println("Failed to load " + segment + ": " + e.getMessage());
+            segment.renameTo(new File(segment.getPath() + ".failed"));
+        }
+    }
+    
     @SuppressWarnings("unchecked")
-    private void loadPersistedData() {
-        File file = new File("emission_data.ser");
-        if (file.exists()) {
-            try (ObjectInputStream in = new ObjectInputStream(
-                new FileInputStream(file))) {
-                
-                deviceUsageData.putAll((Map<String, List<UsageEntry>>) in.readObject());
-                emissionFactors.putAll((Map<String, Float>) in.readObject());
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println("Failed to load persisted data: " + e.getMessage());
+    private void loadLegacyData() {
+        try (ObjectInputStream in = new ObjectInputStream(
+            new FileInputStream(LEGACY_DATA_FILE))) {
+            
+            Map<String, List<UsageEntry>> deviceUsageData = (Map<String, List<UsageEntry>>) in.readObject();
+            Map<String, Float> emissionFactors = new HashMap<>(factorTable.get().factorsAt(0));
+            emissionFactors.putAll((Map<String, Float>) in.readObject());
+            
+            // Entries ingested since startup were priced with the defaults.
+            synchronized (factorTable) {
+                factorTable.set(EmissionFactorTable.of(emissionFactors, DEFAULT_FACTOR));
+                reprice(Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+            
+            UsageStore.Writer writer = usageStore.newWriter();
+            UsageSummaryAggregator usage = new UsageSummaryAggregator();
+            int skipped = 0;
+            try {
+                for (List<UsageEntry> entries : deviceUsageData.values()) {
+                    for (UsageEntry entry : entries) {
+                        long timestamp;
+                        try {
+                            timestamp = parseTimestamp(entry.getTimestamp());
+                        } catch (NumberFormatException e) {
+                            skipped++;
+                            continue;
+                        }
+                        ingest(entry, timestamp, usage, writer);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            if (skipped > 0) {
+                System.err.println("Skipped " + skipped + " entries with invalid timestamps in " + LEGACY_DATA_FILE);
             }
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Failed to load persisted data: " + e.getMessage());
         }
     }
 }
@@ -1,65 +1,114 @@
 public class EnhancedClimateControlClient {
     private final ServiceDiscovery discovery;
-    private final Map<String, ServiceInfo> availableServices = new ConcurrentHashMap<>();
+    private final Map<String, ServiceDiscovery.InstanceListener> listeners = new HashMap<>();
+    private final Map<String, ServiceInstance> availableServices = new ConcurrentHashMap<>();
+    private final Map<String, String> connectedServices = new ConcurrentHashMap<>();
+    private final ChannelManager channels = ChannelManager.shared();
+    private ChannelManager.Lease airQualityLease;
+    private ChannelManager.Lease thermostatLease;
+    private ChannelManager.Lease emissionsLease;
+    private AsyncThermostatClient thermostatClient;
     
     public EnhancedClimateControlClient() throws IOException {
-        this.discovery = new ServiceDiscovery();
+        // Shared with the channels' name resolver, which ChannelManager registers once per process.
+        this.discovery = ChannelManager.discovery();
         setupServiceDiscovery();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                shutdown();
+            } catch (IOException e) {
+                System.err.println("Failed to stop service discovery: " + e.getMessage());
+            }
+        }));
     }
     
     private void setupServiceDiscovery() {
-        discoverServicesOfType("_airquality._tcp.local.");
-        discoverServicesOfType("_thermostat._tcp.local.");
-        discoverServicesOfType("_emissions._tcp.local.");
-    }
-    
-    private void discoverServicesOfType(String serviceType) {
-        discovery.discoverServicesAsync(serviceType, info -> {
-            SwingUtilities.invokeLater(() -> {
-                availableServices.put(info.getName(), info);
-                updateServiceList();
-                
-                if (availableServices.values().stream()
-                    .filter(s -> s.getType().equals(serviceType))
-                    .count() == 1) {
-                    connectToService(info);
+        String[] serviceTypes = {"_airquality._tcp.local.", "_thermostat._tcp.local.", "_emissions._tcp.local."};
+        // Start every lookup before waiting on any, so startup takes the slowest type rather than the sum.
+        for (String serviceType : serviceTypes) {
+            discovery.lookup(serviceType, null).thenAccept(instance -> {
+                if (instance != null) {
+                    SwingUtilities.invokeLater(() -> serviceAdded(instance));
                 }
             });
-        });
+        }
+        for (String serviceType : serviceTypes) {
+            ServiceDiscovery.InstanceListener listener = new ServiceDiscovery.InstanceListener() {
+                @Override
+                public void instanceAdded(ServiceInstance instance) {
+                    SwingUtilities.invokeLater(() -> serviceAdded(instance));
+                }
+                
+                @Override
+                public void instanceRemoved(ServiceInstance instance) {
+                    SwingUtilities.invokeLater(() -> {
+                        availableServices.remove(instance.getName());
+                        updateServiceList();
+                    });
+                }
+            };
+            listeners.put(serviceType, listener);
+            discovery.addInstanceListener(serviceType, listener);
+        }
+    }
+    
+    private void serviceAdded(ServiceInstance instance) {
+        availableServices.put(instance.getName(), instance);
+        updateServiceList();
+        
+        if (connectedServices.putIfAbsent(instance.getType(), instance.getName()) == null) {
+            connectToService(instance);
+        }
     }
     
     private void updateServiceList() {
     }
     
-    private void connectToService(ServiceInfo info) {
-        String type = info.getType();
-        String address = info.getHostAddresses()[0];
-        int port = info.getPort();
+    private void connectToService(ServiceInstance instance) {
+        String type = instance.getType();
+        // The channel follows every instance of the type, not just the one that was found first.
+        String target = DiscoveryNameResolverProvider.target(type);
         
         try {
             if (type.equals("_airquality._tcp.local.")) {
-                airQualityChannel = ManagedChannelBuilder.forAddress(address, port)
-                    .usePlaintext()
-                    .build();
+                airQualityLease = replaceLease(airQualityLease, target);
+                airQualityChannel = airQualityLease.getChannel();
                 airQualityStub = AirQualityMonitorGrpc.newStub(airQualityChannel);
-                log("Connected to Air Quality service at " + address + ":" + port);
+                log("Connected to Air Quality service via " + target);
             } 
             else if (type.equals("_thermostat._tcp.local.")) {
-                thermostatChannel = ManagedChannelBuilder.forAddress(address, port)
-                    .usePlaintext()
-                    .build();
-                thermostatBlockingStub = SmartThermostatGrpc.newBlockingStub(thermostatChannel);
+                thermostatLease = replaceLease(thermostatLease, target);
+                thermostatChannel = thermostatLease.getChannel();
+                thermostatClient = new AsyncThermostatClient(thermostatChannel);
                 thermostatAsyncStub = SmartThermostatGrpc.newStub(thermostatChannel);
-                log("Connected to Thermostat service at " + address + ":" + port);
+                log("Connected to Thermostat service via " + target);
             }
             else if (type.equals("_emissions._tcp.local.")) {
-                emissionsChannel = ManagedChannelBuilder.forAddress(address, port)
-                    .usePlaintext()
-                    .build();
+                emissionsLease = replaceLease(emissionsLease, target);
+                emissionsChannel = emissionsLease.getChannel();
                 emissionsStub = CarbonEmissionTrackerGrpc.newStub(emissionsChannel);
-                log("Connected to Emissions service at " + address + ":" + port);
+                log("Connected to Emissions service via " + target);
             }
         } catch (Exception e) {
             log("Failed to connect to service: " + e.getMessage());
         }
     }
+    
+    // Acquires before releasing so reconnecting to the same target keeps its channel open.
+    private ChannelManager.Lease replaceLease(ChannelManager.Lease current, String target) {
+        ChannelManager.Lease next = channels.acquire(target);
+        if (current != null) {
+            current.close();
+        }
+        return next;
+    }
+    
+    // Releases this client's channels and listeners; the shared manager closes what nothing else holds.
+    public void shutdown() throws IOException {
+        for (ChannelManager.Lease lease : new ChannelManager.Lease[]{airQualityLease, thermostatLease, emissionsLease}) {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+        listeners.forEach(discovery::removeInstanceListener);
+    }
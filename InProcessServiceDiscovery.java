@@ -0,0 +1,182 @@
+package climate.discovery;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Discovery over an in-memory registry. Registering and finding a service are
+ * map operations, so a whole cluster in one JVM is discoverable as soon as its
+ * servers have started. Lookups made before a service registers wait for it,
+ * up to the same timeout as multicast discovery.
+ *
+ * <p>Changes are made under the monitor, but listeners and waiting lookups are
+ * told afterwards, outside it, in the order the changes happened. A listener
+ * can therefore call back into the registry, and a slow one does not hold up
+ * registration.
+ */
+public class InProcessServiceDiscovery implements ServiceDiscovery {
+    private static final int DISCOVERY_TIMEOUT = 10; // seconds
+    private static final InProcessServiceDiscovery SHARED = new InProcessServiceDiscovery();
+
+    private final Map<String, Map<String, ServiceInstance>> instances = new ConcurrentHashMap<>();
+    private final Map<String, List<InstanceListener>> listeners = new ConcurrentHashMap<>();
+    private final Map<String, List<CompletableFuture<ServiceInstance>>> pendingLookups = new ConcurrentHashMap<>();
+    private final Queue<Runnable> notifications = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean notifying = new AtomicBoolean();
+
+    /** The registry shared by everything in this JVM that uses the {@code inprocess} backend. */
+    public static InProcessServiceDiscovery shared() {
+        return SHARED;
+    }
+
+    @Override
+    public Registration register(String serviceType, String serviceName, int port, Map<String, String> properties) {
+        ServiceInstance registered = new ServiceInstance(serviceType, serviceName,
+            Collections.singletonList("127.0.0.1"), port, properties);
+        add(registered);
+        System.out.println("Registered service in process: " + registered);
+        return new Registration() {
+            private volatile ServiceInstance current = registered;
+
+            @Override
+            public ServiceInstance getInstance() {
+                return current;
+            }
+
+            @Override
+            public void updateProperties(Map<String, String> updated) {
+                current = current.withProperties(updated);
+                add(current);
+            }
+
+            @Override
+            public void unregister() {
+                remove(current);
+            }
+        };
+    }
+
+    /** Adds or replaces an instance and tells listeners and waiting lookups about it. */
+    protected void add(ServiceInstance instance) {
+        synchronized (this) {
+            ServiceInstance previous = byType(instance.getType()).put(instance.getName(), instance);
+            for (InstanceListener listener : listenersFor(instance.getType())) {
+                if (previous == null) {
+                    notifications.add(() -> listener.instanceAdded(instance));
+                } else {
+                    notifications.add(() -> listener.instanceUpdated(instance));
+                }
+            }
+            complete(key(instance.getType(), instance.getName()), instance);
+            complete(key(instance.getType(), ""), instance);
+        }
+        notifyListeners();
+    }
+
+    protected void remove(ServiceInstance instance) {
+        synchronized (this) {
+            if (byType(instance.getType()).remove(instance.getName()) != null) {
+                for (InstanceListener listener : listenersFor(instance.getType())) {
+                    notifications.add(() -> listener.instanceRemoved(instance));
+                }
+            }
+        }
+        notifyListeners();
+    }
+
+    @Override
+    public synchronized CompletableFuture<ServiceInstance> lookup(String serviceType, String serviceName) {
+        String name = serviceName == null ? "" : serviceName;
+        Map<String, ServiceInstance> ofType = byType(serviceType);
+        ServiceInstance found = name.isEmpty()
+            ? ofType.values().stream().findFirst().orElse(null)
+            : ofType.get(name);
+        if (found != null) {
+            return CompletableFuture.completedFuture(found);
+        }
+
+        String key = key(serviceType, name);
+        CompletableFuture<ServiceInstance> pending = new CompletableFuture<>();
+        pendingLookups.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(pending);
+        pending.completeOnTimeout(null, DISCOVERY_TIMEOUT, TimeUnit.SECONDS)
+            .whenComplete((instance, e) -> {
+                List<CompletableFuture<ServiceInstance>> waiting = pendingLookups.get(key);
+                if (waiting != null) {
+                    waiting.remove(pending);
+                }
+            });
+        return pending;
+    }
+
+    @Override
+    public void addInstanceListener(String serviceType, InstanceListener listener) {
+        synchronized (this) {
+            listenersFor(serviceType).add(listener);
+            for (ServiceInstance instance : byType(serviceType).values()) {
+                notifications.add(() -> listener.instanceAdded(instance));
+            }
+        }
+        notifyListeners();
+    }
+
+    @Override
+    public void removeInstanceListener(String serviceType, InstanceListener listener) {
+        listenersFor(serviceType).remove(listener);
+    }
+
+    @Override
+    public Map<String, ServiceInstance> listDiscoveredServices(String serviceType) {
+        return new HashMap<>(byType(serviceType));
+    }
+
+    @Override
+    public void shutdown() {
+        // Nothing to release; registrations stay until unregistered.
+    }
+
+    private Map<String, ServiceInstance> byType(String serviceType) {
+        return instances.computeIfAbsent(serviceType, t -> new ConcurrentHashMap<>());
+    }
+
+    private List<InstanceListener> listenersFor(String serviceType) {
+        return listeners.computeIfAbsent(serviceType, t -> new CopyOnWriteArrayList<>());
+    }
+
+    private void complete(String key, ServiceInstance instance) {
+        List<CompletableFuture<ServiceInstance>> waiting = pendingLookups.remove(key);
+        if (waiting != null) {
+            notifications.add(() -> waiting.forEach(lookup -> lookup.complete(instance)));
+        }
+    }
+
+    // Runs queued notifications one at a time; a caller that finds another thread at it leaves the queue to that thread.
+    private void notifyListeners() {
+        while (!notifications.isEmpty() && notifying.compareAndSet(false, true)) {
+            try {
+                Runnable notification;
+                while ((notification = notifications.poll()) != null) {
+                    try {
+                        notification.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Service discovery listener failed: " + e);
+                    }
+                }
+            } finally {
+                notifying.set(false);
+            }
+        }
+    }
+
+    private static String key(String serviceType, String serviceName) {
+        return serviceType + "/" + serviceName;
+    }
+}
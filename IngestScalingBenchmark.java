@@ -0,0 +1,136 @@
+package climate.emissions;
+
+import climate.cache.QueryResultCache;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how ingest scales from 1 to 32 concurrent streams. Each entry takes
+ * the steps EnhancedCarbonEmissionTracker.ingest takes, against the same
+ * structures: the idempotency check, the stream's own {@link UsageStore.Writer},
+ * pricing into the rollups and range index through the trend cache, the
+ * stream's summary, and the top emitter windows. Timestamps are live, so every
+ * stream lands in the same hourly cells, range index chunk and DAY/WEEK
+ * windows, which is where streams would contend. Alongside throughput it
+ * reports how often a stream blocked on a monitor, which shows contention
+ * even on a machine with too few cores for the throughput to scale.
+ *
+ * <pre>java climate.emissions.IngestScalingBenchmark [entriesPerStream]</pre>
+ */
+public class IngestScalingBenchmark {
+    private static final String[] DEVICE_TYPES = {
+        "heater", "air conditioner", "washing machine", "oven", "fridge", "ev charger", "pump", "lighting"};
+    private static final int DEVICES_PER_STREAM = 1000;
+    private static final int MAX_STREAMS = 32;
+    private static final int ROUNDS = 3;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws InterruptedException {
+        int perStream = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        System.out.printf("%d entries per stream, %d cores, best of %d rounds%n",
+            perStream, Runtime.getRuntime().availableProcessors(), ROUNDS);
+        System.out.printf("%8s %16s %12s %22s%n", "streams", "entries (M/s)", "vs 1 stream", "blocked per 1k entries");
+        THREADS.setThreadContentionMonitoringEnabled(true);
+
+        // Warm up at every stream count, so the first row measured is not still being compiled.
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int streams = 1; streams <= MAX_STREAMS; streams *= 2) {
+                run(streams, perStream / streams);
+            }
+        }
+        double single = 0;
+        for (int streams = 1; streams <= MAX_STREAMS; streams *= 2) {
+            double best = 0;
+            long blocked = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                double[] result = run(streams, perStream);
+                best = Math.max(best, result[0]);
+                blocked += (long) result[1];
+            }
+            if (streams == 1) {
+                single = best;
+            }
+            System.out.printf("%8d %16.2f %11.2fx %22.2f%n", streams, best, best / single,
+                blocked * 1000.0 / ROUNDS / streams / perStream);
+        }
+    }
+
+    // Returns millions of entries ingested per second across all streams, and how often the streams blocked.
+    private static double[] run(int streams, int perStream) throws InterruptedException {
+        Pipeline pipeline = new Pipeline();
+        long now = System.currentTimeMillis();
+        CountDownLatch start = new CountDownLatch(1);
+        LongAdder blocked = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < streams; s++) {
+            int stream = s;
+            Thread thread = new Thread(() -> {
+                UsageStore.Writer writer = pipeline.store.newWriter();
+                UsageSummaryAggregator usage = new UsageSummaryAggregator();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perStream; i++) {
+                    pipeline.ingest(stream + ":" + i, stream + "-" + i % DEVICES_PER_STREAM,
+                        DEVICE_TYPES[(stream + i) % DEVICE_TYPES.length], now + i, 0.5f, 2.0f, usage, writer);
+                }
+                writer.close();
+                blocked.add(THREADS.getThreadInfo(Thread.currentThread().getId()).getBlockedCount());
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        // Keys are all distinct, so the only entries dropped are the deduplicator's bloom false positives.
+        long offered = (long) streams * perStream;
+        long expected = offered - pipeline.deduplicator.getBloomRejections();
+        if (pipeline.store.snapshot().size() != expected) {
+            throw new IllegalStateException("Stored " + pipeline.store.snapshot().size() + " of " + expected);
+        }
+        return new double[]{offered / (elapsed / 1e3), blocked.sum()};
+    }
+
+    private static class Pipeline {
+        final UsageStore store = new UsageStore();
+        final EnergySourceClassifier classifier = EnergySourceClassifier.defaults();
+        final EmissionFactorTable factors = EmissionFactorTable.of(Map.of("ELECTRICITY", 0.4f), 0.4f);
+        final UsageDeduplicator deduplicator = new UsageDeduplicator(24, 1 << 14, 1e-6);
+        final EmissionRollups rollups = new EmissionRollups();
+        final EmissionRangeIndex rangeIndex = new EmissionRangeIndex();
+        final TopEmitterTracker topEmitters = new TopEmitterTracker(classifier::classify, factors::factorAt);
+        final QueryResultCache<String, Object, EmissionRollups.Priced> trendCache =
+            new QueryResultCache<>("Benchmark", 64, (value, timestamp, data) -> true);
+
+        void ingest(String key, String deviceId, String deviceType, long timestamp, float duration, float power,
+                    UsageSummaryAggregator usage, UsageStore.Writer writer) {
+            if (!deduplicator.firstSeen(key, System.currentTimeMillis())) {
+                return;
+            }
+            float kwh = duration * power;
+            writer.append(deviceType, timestamp, duration, power);
+            EmissionRollups.Priced priced = trendCache.append(timestamp, () -> {
+                EmissionRollups.Priced p = rollups.add(deviceType, timestamp, kwh, classifier::classify,
+                    factors::factorAt);
+                rangeIndex.add(deviceType, timestamp, kwh, p.getCo2());
+                return p;
+            }, deviceType, "");
+            usage.add(deviceType, priced.getSource(), kwh, (float) priced.getCo2());
+            usage.addDeviceId(deviceId);
+            topEmitters.add(deviceId, deviceType, timestamp, kwh);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package climate.emissions;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Server-side state of one resumable StreamDeviceUsage upload. It outlives the
+ * individual streams so a client can reconnect and continue from the last
+ * acknowledged offset; all fields are guarded by the session's monitor.
+ *
+ * <p>Each attaching stream bumps {@link #generation} and only the stream that
+ * holds the current one may ingest, report or detach, so a stream that was
+ * superseded by a reconnect cannot disturb its successor.
+ */
+class IngestSession {
+    final String id;
+    final UsageSummaryAggregator usage = new UsageSummaryAggregator();
+    final UsageStore.Writer history;
+    long nextOffset = 0;
+    long reportedOffset = 0;
+    int summaryEveryEntries;
+    long generation = 0;
+    ScheduledFuture<?> reporter;  // the current stream's periodic progress
+    boolean closed = false;       // no stream attached
+    boolean ended = false;        // completed or expired, and no longer in the session map
+    volatile long lastActive = System.currentTimeMillis();
+
+    IngestSession(String id, UsageStore.Writer history) {
+        this.id = id;
+        this.history = history;
+    }
+}
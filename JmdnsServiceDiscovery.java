@@ -0,0 +1,277 @@
+package climate.discovery;
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * mDNS discovery with a cache in front of it. Each service type gets one
+ * long-lived listener the first time it is asked about, and resolved instances
+ * are kept until they are removed or fail to revalidate within their TTL.
+ * Lookups answer straight from the cache when they can; lookups that time out
+ * are remembered briefly so repeated misses do not each wait on multicast.
+ */
+public class JmdnsServiceDiscovery implements ServiceDiscovery {
+    private static final int DISCOVERY_TIMEOUT = 10; // seconds
+    private static final long INSTANCE_TTL_MILLIS = 120_000;
+    private static final long NEGATIVE_TTL_MILLIS = 30_000;
+    private static final int REFRESH_TIMEOUT_MILLIS = 2000;
+
+    private final JmDNS jmdns;
+    private final Map<String, TypeWatch> watches = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<ServiceInstance>> pendingLookups = new ConcurrentHashMap<>();
+    private final Map<String, Long> negativeCache = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "service-discovery-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class CachedInstance {
+        final ServiceInstance instance;
+        volatile long expiresAt;
+
+        CachedInstance(ServiceInstance instance, long expiresAt) {
+            this.instance = instance;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class TypeWatch implements ServiceListener {
+        final String type;
+        final Map<String, CachedInstance> instances = new ConcurrentHashMap<>();
+        final List<InstanceListener> listeners = new CopyOnWriteArrayList<>();
+
+        TypeWatch(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public void serviceAdded(ServiceEvent event) {
+            jmdns.requestServiceInfo(event.getType(), event.getName());
+        }
+
+        @Override
+        public void serviceRemoved(ServiceEvent event) {
+            System.out.println("Service removed: " + event.getName());
+            CachedInstance removed = instances.remove(event.getName());
+            if (removed != null) {
+                listeners.forEach(listener -> listener.instanceRemoved(removed.instance));
+            }
+        }
+
+        @Override
+        public void serviceResolved(ServiceEvent event) {
+            ServiceInfo info = event.getInfo();
+            if (info.getHostAddresses().length == 0) {
+                return;
+            }
+            System.out.println("Service resolved: " + info);
+            ServiceInstance instance = toInstance(info);
+            CachedInstance previous = instances.put(event.getName(),
+                new CachedInstance(instance, System.currentTimeMillis() + INSTANCE_TTL_MILLIS));
+
+            negativeCache.remove(key(type, event.getName()));
+            negativeCache.remove(key(type, ""));
+            complete(key(type, event.getName()), instance);
+            complete(key(type, ""), instance);
+            if (previous == null) {
+                listeners.forEach(listener -> listener.instanceAdded(instance));
+            } else {
+                listeners.forEach(listener -> listener.instanceUpdated(instance));
+            }
+        }
+
+        ServiceInstance any() {
+            long now = System.currentTimeMillis();
+            for (CachedInstance cached : instances.values()) {
+                if (cached.expiresAt > now) {
+                    return cached.instance;
+                }
+            }
+            return null;
+        }
+
+        ServiceInstance get(String name) {
+            CachedInstance cached = instances.get(name);
+            return cached != null && cached.expiresAt > System.currentTimeMillis() ? cached.instance : null;
+        }
+
+        // Revalidates instances halfway through their TTL and drops those that stop answering.
+        void refresh() {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, CachedInstance> entry : instances.entrySet()) {
+                CachedInstance cached = entry.getValue();
+                if (cached.expiresAt - now > INSTANCE_TTL_MILLIS / 2) {
+                    continue;
+                }
+                ServiceInfo current = jmdns.getServiceInfo(type, entry.getKey(), REFRESH_TIMEOUT_MILLIS);
+                if (current != null && current.getHostAddresses().length > 0) {
+                    cached.expiresAt = System.currentTimeMillis() + INSTANCE_TTL_MILLIS;
+                } else if (cached.expiresAt <= System.currentTimeMillis()
+                        && instances.remove(entry.getKey(), cached)) {
+                    System.out.println("Service expired: " + entry.getKey());
+                    listeners.forEach(listener -> listener.instanceRemoved(cached.instance));
+                }
+            }
+        }
+    }
+
+    public JmdnsServiceDiscovery() throws IOException {
+        this.jmdns = JmDNS.create(InetAddress.getLocalHost());
+        refresher.scheduleWithFixedDelay(() -> watches.values().forEach(TypeWatch::refresh),
+            INSTANCE_TTL_MILLIS / 4, INSTANCE_TTL_MILLIS / 4, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Override
+    public Registration register(String serviceType, String serviceName, int port,
+                                 Map<String, String> properties) throws IOException {
+        ServiceInfo serviceInfo = ServiceInfo.create(serviceType, serviceName, port, 0, 0, properties);
+        jmdns.registerService(serviceInfo);
+        System.out.println("Registered service with jmDNS: " + serviceInfo);
+        return new Registration() {
+            @Override
+            public ServiceInstance getInstance() {
+                return toInstance(serviceInfo);
+            }
+
+            @Override
+            public void updateProperties(Map<String, String> updated) {
+                serviceInfo.setText(updated);
+            }
+
+            @Override
+            public void unregister() {
+                jmdns.unregisterService(serviceInfo);
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<ServiceInstance> lookup(String serviceType, String serviceName) {
+        String name = serviceName == null ? "" : serviceName;
+        TypeWatch watch = watch(serviceType);
+        ServiceInstance cached = name.isEmpty() ? watch.any() : watch.get(name);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        String key = key(serviceType, name);
+        Long missUntil = negativeCache.get(key);
+        if (missUntil != null && missUntil > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<ServiceInstance> created = new CompletableFuture<>();
+        CompletableFuture<ServiceInstance> pending = pendingLookups.putIfAbsent(key, created);
+        if (pending != null) {
+            return pending;
+        }
+        created.completeOnTimeout(null, DISCOVERY_TIMEOUT, TimeUnit.SECONDS)
+            .whenComplete((instance, e) -> {
+                pendingLookups.remove(key, created);
+                if (instance == null) {
+                    System.err.println("Service discovery timeout for " + serviceType + " " + name);
+                    negativeCache.put(key, System.currentTimeMillis() + NEGATIVE_TTL_MILLIS);
+                }
+            });
+
+        // The instance may have resolved between the cache check and registering the lookup.
+        cached = name.isEmpty() ? watch.any() : watch.get(name);
+        if (cached != null) {
+            created.complete(cached);
+        } else if (!name.isEmpty()) {
+            jmdns.requestServiceInfo(serviceType, name);
+        }
+        return created;
+    }
+
+    @Override
+    public void addInstanceListener(String serviceType, InstanceListener listener) {
+        TypeWatch watch = watch(serviceType);
+        watch.listeners.add(listener);
+        long now = System.currentTimeMillis();
+        for (CachedInstance cached : watch.instances.values()) {
+            if (cached.expiresAt > now) {
+                listener.instanceAdded(cached.instance);
+            }
+        }
+    }
+
+    @Override
+    public void removeInstanceListener(String serviceType, InstanceListener listener) {
+        TypeWatch watch = watches.get(serviceType);
+        if (watch != null) {
+            watch.listeners.remove(listener);
+        }
+    }
+
+    @Override
+    public Map<String, ServiceInstance> listDiscoveredServices(String serviceType) {
+        Map<String, ServiceInstance> result = new HashMap<>();
+        TypeWatch watch = watches.get(serviceType);
+        if (watch != null) {
+            long now = System.currentTimeMillis();
+            watch.instances.forEach((name, cached) -> {
+                if (cached.expiresAt > now) {
+                    result.put(name, cached.instance);
+                }
+            });
+        }
+        return result;
+    }
+
+    private TypeWatch watch(String serviceType) {
+        TypeWatch watch = watches.get(serviceType);
+        if (watch == null) {
+            TypeWatch created = new TypeWatch(serviceType);
+            watch = watches.putIfAbsent(serviceType, created);
+            if (watch == null) {
+                watch = created;
+                jmdns.addServiceListener(serviceType, created);
+            }
+        }
+        return watch;
+    }
+
+    private void complete(String key, ServiceInstance instance) {
+        CompletableFuture<ServiceInstance> pending = pendingLookups.get(key);
+        if (pending != null) {
+            pending.complete(instance);
+        }
+    }
+
+    private static ServiceInstance toInstance(ServiceInfo info) {
+        Map<String, String> properties = new HashMap<>();
+        for (String name : Collections.list(info.getPropertyNames())) {
+            properties.put(name, info.getPropertyString(name));
+        }
+        return new ServiceInstance(info.getType(), info.getName(), Arrays.asList(info.getHostAddresses()),
+            info.getPort(), properties);
+    }
+
+    private static String key(String serviceType, String serviceName) {
+        return serviceType + "/" + serviceName;
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        refresher.shutdownNow();
+        jmdns.unregisterAllServices();
+        jmdns.close();
+    }
+}
@@ -0,0 +1,169 @@
+package climate.discovery;
+
+import climate.airquality.AirQualityMonitorGrpc;
+import climate.airquality.PercentileRequest;
+import climate.airquality.PercentileResponse;
+import climate.client.ChannelManager;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs three replicas of a service in this JVM, one of them several times
+ * slower than the others, and sends the same open-loop load through
+ * round_robin and through {@value WeightedLeastLoadedLoadBalancerProvider#POLICY_NAME}.
+ * Instances are found with the in-process registry and publish their load
+ * through {@link LoadReporter} as the real servers do; the printed latency
+ * percentiles show what the load-aware policy does to the tail.
+ *
+ * <pre>java climate.discovery.LoadBalancingDemo [callsPerSecond] [seconds]</pre>
+ */
+public class LoadBalancingDemo {
+    private static final String SERVICE_TYPE = "_loadtest._tcp.local.";
+    private static final long[] SERVICE_MILLIS = {4, 4, 20};  // the last replica is the slow one
+    private static final int WORKERS_PER_REPLICA = 2;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int callsPerSecond = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.setProperty(ServiceDiscovery.BACKEND_PROPERTY, "inprocess");
+        ServiceDiscovery discovery = ChannelManager.discovery();  // also registers the resolver and the policy
+
+        System.out.printf("%d calls/s for %ds, replicas taking %s ms per call on %d workers each%n",
+            callsPerSecond, seconds, Arrays.toString(SERVICE_MILLIS), WORKERS_PER_REPLICA);
+        System.out.printf("%-22s %8s %8s %8s %8s   %s%n", "policy", "p50 ms", "p99 ms", "p999 ms", "max ms",
+            "calls per replica");
+        for (String policy : new String[]{"round_robin", WeightedLeastLoadedLoadBalancerProvider.POLICY_NAME}) {
+            // Fresh replicas per policy, so neither inherits the other's backlog or published load.
+            List<Replica> replicas = new ArrayList<>();
+            try {
+                for (int i = 0; i < SERVICE_MILLIS.length; i++) {
+                    replicas.add(new Replica(discovery, "replica-" + i, SERVICE_MILLIS[i]));
+                }
+                long[] latencies = run(policy, callsPerSecond, seconds);
+                List<Integer> calls = new ArrayList<>();
+                replicas.forEach(replica -> calls.add(replica.calls.get()));
+                System.out.printf("%-22s %8.1f %8.1f %8.1f %8.1f   %s%n", policy,
+                    percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    percentile(latencies, 1), calls);
+            } finally {
+                for (Replica replica : replicas) {
+                    replica.stop();
+                }
+            }
+        }
+    }
+
+    // Issues calls at a fixed rate whatever the replies are doing, and returns their latencies in nanoseconds.
+    private static long[] run(String policy, int callsPerSecond, int seconds) throws InterruptedException {
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(DiscoveryNameResolverProvider.target(SERVICE_TYPE))
+            .defaultLoadBalancingPolicy(policy)
+            .usePlaintext()
+            .build();
+        AirQualityMonitorGrpc.AirQualityMonitorStub stub = AirQualityMonitorGrpc.newStub(channel);
+        ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor();
+        int total = callsPerSecond * seconds;
+        AtomicLongArray latencies = new AtomicLongArray(total);
+        AtomicInteger sent = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(total);
+        try {
+            sender.scheduleAtFixedRate(() -> {
+                int call = sent.getAndIncrement();
+                if (call >= total) {
+                    return;
+                }
+                long start = System.nanoTime();
+                stub.getPercentiles(PercentileRequest.getDefaultInstance(), new StreamObserver<PercentileResponse>() {
+                    @Override
+                    public void onNext(PercentileResponse response) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        latencies.set(call, Long.MAX_VALUE);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        latencies.set(call, System.nanoTime() - start);
+                        done.countDown();
+                    }
+                });
+            }, 0, TimeUnit.SECONDS.toNanos(1) / callsPerSecond, TimeUnit.NANOSECONDS);
+            done.await(seconds + 30, TimeUnit.SECONDS);
+        } finally {
+            sender.shutdownNow();
+            channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        }
+
+        long[] sorted = new long[total];
+        for (int i = 0; i < total; i++) {
+            sorted[i] = latencies.get(i) == 0 ? Long.MAX_VALUE : latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // In milliseconds; calls that failed or never finished count as infinitely slow.
+    private static double percentile(long[] sorted, double quantile) {
+        long nanos = sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+        return nanos == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : nanos / 1e6;
+    }
+
+    /** One instance: a fixed pool of workers, each call holding one for the replica's service time. */
+    private static class Replica {
+        final Server server;
+        final ExecutorService workers = Executors.newFixedThreadPool(WORKERS_PER_REPLICA);
+        final LoadReporter loadReporter =
+            new LoadReporter(Collections.singletonMap("description", "Load balancing demo replica"));
+        final ServiceDiscovery.Registration registration;
+        final AtomicInteger calls = new AtomicInteger();
+
+        Replica(ServiceDiscovery discovery, String name, long serviceMillis) throws IOException {
+            AirQualityMonitorGrpc.AirQualityMonitorImplBase service = new AirQualityMonitorGrpc.AirQualityMonitorImplBase() {
+                @Override
+                public void getPercentiles(PercentileRequest request, StreamObserver<PercentileResponse> responseObserver) {
+                    calls.incrementAndGet();
+                    try {
+                        Thread.sleep(serviceMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    responseObserver.onNext(PercentileResponse.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+            };
+            server = ServerBuilder.forPort(0)
+                .executor(workers)
+                .addService(ServerInterceptors.intercept(service, loadReporter))
+                .build()
+                .start();
+            registration = discovery.register(SERVICE_TYPE, name, server.getPort(), loadReporter.properties());
+            loadReporter.start(registration);
+        }
+
+        void stop() throws InterruptedException {
+            registration.unregister();
+            loadReporter.shutdown();
+            server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+            workers.shutdownNow();
+        }
+    }
+}
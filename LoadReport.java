@@ -0,0 +1,98 @@
+package climate.discovery;
+
+import io.grpc.Attributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Load figures a server publishes with its service registration (as TXT
+ * record entries under JmDNS): in-flight unary calls, open streams, recent p99
+ * latency and process CPU use. The latency is of unary calls to completion and
+ * of streams to their first response.
+ */
+public class LoadReport {
+    /** Where the name resolver attaches an instance's report to its addresses. */
+    public static final Attributes.Key<LoadReport> ATTRIBUTE = Attributes.Key.create("climate.loadReport");
+
+    static final String IN_FLIGHT = "inflight";
+    static final String STREAMS = "streams";
+    static final String P99_MILLIS = "p99ms";
+    static final String CPU_PERCENT = "cpu";
+
+    private final int inFlight;
+    private final int streams;
+    private final long p99Millis;
+    private final int cpuPercent;
+
+    public LoadReport(int inFlight, int streams, long p99Millis, int cpuPercent) {
+        this.inFlight = inFlight;
+        this.streams = streams;
+        this.p99Millis = p99Millis;
+        this.cpuPercent = cpuPercent;
+    }
+
+    /** Reads the report from an instance's properties; null if it does not publish one. */
+    public static LoadReport fromInstance(ServiceInstance instance) {
+        String inFlight = instance.getProperty(IN_FLIGHT);
+        if (inFlight == null) {
+            return null;
+        }
+        try {
+            return new LoadReport(Integer.parseInt(inFlight),
+                Integer.parseInt(instance.getProperty(STREAMS)),
+                Long.parseLong(instance.getProperty(P99_MILLIS)),
+                Integer.parseInt(instance.getProperty(CPU_PERCENT)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public Map<String, String> toProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(IN_FLIGHT, Integer.toString(inFlight));
+        properties.put(STREAMS, Integer.toString(streams));
+        properties.put(P99_MILLIS, Long.toString(p99Millis));
+        properties.put(CPU_PERCENT, Integer.toString(cpuPercent));
+        return properties;
+    }
+
+    /**
+     * Relative cost of sending one more call to the instance: queue depth times
+     * tail latency, inflated by CPU pressure. Streams count at half weight since
+     * most of their life is spent idle between messages.
+     */
+    public double cost(int localInFlight) {
+        double queue = 1 + Math.max(inFlight, localInFlight) + streams / 2.0;
+        return queue * Math.max(p99Millis, 1) * (1 + cpuPercent / 100.0);
+    }
+
+    /** Whether publishing this report instead of {@code other} would tell clients anything new. */
+    boolean differsFrom(LoadReport other) {
+        return other == null
+            || inFlight != other.inFlight
+            || streams != other.streams
+            || Math.abs(p99Millis - other.p99Millis) > Math.max(2, other.p99Millis / 10)
+            || Math.abs(cpuPercent - other.cpuPercent) >= 5;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    public long getP99Millis() {
+        return p99Millis;
+    }
+
+    public int getCpuPercent() {
+        return cpuPercent;
+    }
+
+    @Override
+    public String toString() {
+        return "inflight=" + inFlight + " streams=" + streams + " p99=" + p99Millis + "ms cpu=" + cpuPercent + "%";
+    }
+}
@@ -0,0 +1,180 @@
+package climate.discovery;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Server interceptor that tracks how busy this instance is and republishes
+ * the figures in its service registration, the TXT record under JmDNS.
+ * Publishing is checked every couple of seconds and skipped when nothing has
+ * moved enough to matter, so mDNS traffic stays bounded however many calls are
+ * served.
+ *
+ * <p>Unary calls count as in flight and streaming calls of any kind as open
+ * streams. Latency covers both: a unary call is timed to completion and a
+ * stream to its first response message, since a stream's total length says
+ * how long the client watched rather than how busy the server was.
+ */
+public class LoadReporter implements ServerInterceptor {
+    private static final long PUBLISH_INTERVAL_MILLIS = 2000;
+    private static final long LATENCY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private final Map<String, String> staticProperties;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger streams = new AtomicInteger();
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_SAMPLES);
+    private final AtomicLongArray completedAt = new AtomicLongArray(LATENCY_SAMPLES);
+    private final AtomicLong sampleCount = new AtomicLong();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "load-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile LoadReport published;
+
+    /** {@code staticProperties} are published alongside the load figures, e.g. a description. */
+    public LoadReporter(Map<String, String> staticProperties) {
+        this.staticProperties = staticProperties;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        boolean unary = call.getMethodDescriptor().getType() == MethodDescriptor.MethodType.UNARY;
+        AtomicInteger counter = unary ? inFlight : streams;
+        long start = System.nanoTime();
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (finished.compareAndSet(false, true)) {
+                counter.decrementAndGet();
+                if (unary) {
+                    recordLatency(start, System.nanoTime());
+                }
+            }
+        };
+
+        ServerCall<ReqT, RespT> timed = call;
+        if (!unary) {
+            AtomicBoolean firstSent = new AtomicBoolean();
+            timed = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                @Override
+                public void sendMessage(RespT message) {
+                    if (firstSent.compareAndSet(false, true)) {
+                        recordLatency(start, System.nanoTime());
+                    }
+                    super.sendMessage(message);
+                }
+            };
+        }
+
+        counter.incrementAndGet();
+        ServerCall.Listener<ReqT> delegate;
+        try {
+            delegate = next.startCall(timed, headers);
+        } catch (RuntimeException e) {
+            finish.run();
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(delegate) {
+            @Override
+            public void onComplete() {
+                finish.run();
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                finish.run();
+                super.onCancel();
+            }
+        };
+    }
+
+    /** The properties to register the service with. */
+    public Map<String, String> properties() {
+        return properties(snapshot());
+    }
+
+    /** Starts republishing load into the registered service's properties. */
+    public void start(ServiceDiscovery.Registration registered) {
+        publisher.scheduleWithFixedDelay(() -> {
+            try {
+                LoadReport report = snapshot();
+                if (report.differsFrom(published)) {
+                    registered.updateProperties(properties(report));
+                    published = report;
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Could not publish load report: " + e.getMessage());
+            }
+        }, PUBLISH_INTERVAL_MILLIS, PUBLISH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        publisher.shutdownNow();
+    }
+
+    LoadReport snapshot() {
+        return new LoadReport(inFlight.get(), streams.get(), p99Millis(), cpuPercent());
+    }
+
+    private Map<String, String> properties(LoadReport report) {
+        Map<String, String> properties = new HashMap<>(staticProperties);
+        properties.putAll(report.toProperties());
+        return properties;
+    }
+
+    private void recordLatency(long start, long end) {
+        int slot = (int) (sampleCount.getAndIncrement() % LATENCY_SAMPLES);
+        latencies.set(slot, end - start);
+        completedAt.set(slot, end);
+    }
+
+    private long p99Millis() {
+        long cutoff = System.nanoTime() - LATENCY_WINDOW_NANOS;
+        int filled = (int) Math.min(sampleCount.get(), LATENCY_SAMPLES);
+        long[] recent = new long[filled];
+        int n = 0;
+        for (int i = 0; i < filled; i++) {
+            if (completedAt.get(i) - cutoff > 0) {
+                recent[n++] = latencies.get(i);
+            }
+        }
+        if (n == 0) {
+            return 0;
+        }
+        Arrays.sort(recent, 0, n);
+        return TimeUnit.NANOSECONDS.toMillis(recent[(int) Math.ceil(0.99 * n) - 1]);
+    }
+
+    private int cpuPercent() {
+        double load = -1;
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        if (load < 0) {
+            // Fall back to the run queue length relative to the cores available.
+            load = os.getSystemLoadAverage() / os.getAvailableProcessors();
+        }
+        return load < 0 ? 0 : (int) Math.round(Math.min(load, 1) * 100);
+    }
+}
@@ -0,0 +1,55 @@
+package climate.discovery;
+
+import climate.airquality.AirQualityServer;
+import climate.emissions.EmissionsServer;
+import climate.thermostat.ThermostatServer;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Starts the air quality, thermostat and emissions servers in one JVM on the
+ * {@code inprocess} discovery backend, then resolves all three service types
+ * the way a client does and reports how long each step took. With
+ * {@code --serve} the cluster keeps running afterwards; otherwise it stops.
+ *
+ * <pre>java climate.discovery.LocalCluster [--serve]</pre>
+ */
+public class LocalCluster {
+    private static final String[] SERVICE_TYPES = {
+        "_airquality._tcp.local.", "_thermostat._tcp.local.", "_emissions._tcp.local."};
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        System.setProperty(ServiceDiscovery.BACKEND_PROPERTY, "inprocess");
+        boolean serve = args.length > 0 && args[0].equals("--serve");
+
+        long begin = System.nanoTime();
+        AirQualityServer airQuality = new AirQualityServer(50051);
+        ThermostatServer thermostat = new ThermostatServer(50052);
+        EmissionsServer emissions = new EmissionsServer(50053);
+        airQuality.start();
+        thermostat.start();
+        emissions.start();
+        long started = System.nanoTime();
+
+        Map<String, ServiceInstance> found = ServiceDiscovery.create().resolveAll(SERVICE_TYPES).get();
+        long resolved = System.nanoTime();
+
+        for (String type : SERVICE_TYPES) {
+            System.out.println(type + " -> " + found.get(type));
+        }
+        System.out.printf("Servers started in %.1f ms, %d of %d service types discovered in %.1f ms%n",
+            (started - begin) / 1e6, found.size(), SERVICE_TYPES.length, (resolved - started) / 1e6);
+
+        if (serve) {
+            airQuality.blockUntilShutdown();
+        } else {
+            emissions.stop();
+            thermostat.stop();
+            airQuality.stop();
+        }
+        if (found.size() != SERVICE_TYPES.length) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package climate.airquality;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One reading producer per location, shared by every stream watching it. A
+ * feed ticks once a second on a shared scheduler while it has subscribers and
+ * stops when the last one leaves, so producer count follows the number of
+ * watched locations rather than the number of streams.
+ */
+public class LocationFeeds {
+    private static final long TICK_MILLIS = 1000;
+
+    private final ScheduledExecutorService scheduler;
+    private final Function<String, AirQualityReading> producer;
+    private final Map<String, Feed> feeds = new HashMap<>();
+
+    private static class Feed {
+        final Set<Consumer<AirQualityReading>> subscribers = new CopyOnWriteArraySet<>();
+        ScheduledFuture<?> task;
+    }
+
+    /** {@code producer} takes a reading for a location; it is called once per tick per watched location. */
+    public LocationFeeds(ScheduledExecutorService scheduler, Function<String, AirQualityReading> producer) {
+        this.scheduler = scheduler;
+        this.producer = producer;
+    }
+
+    public synchronized void subscribe(String location, Consumer<AirQualityReading> subscriber) {
+        Feed feed = feeds.computeIfAbsent(location, l -> new Feed());
+        feed.subscribers.add(subscriber);
+        if (feed.task == null) {
+            feed.task = scheduler.scheduleAtFixedRate(() -> tick(location, feed), 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void unsubscribe(String location, Consumer<AirQualityReading> subscriber) {
+        Feed feed = feeds.get(location);
+        if (feed != null && feed.subscribers.remove(subscriber) && feed.subscribers.isEmpty()) {
+            feed.task.cancel(false);
+            feeds.remove(location);
+        }
+    }
+
+    private void tick(String location, Feed feed) {
+        if (feed.subscribers.isEmpty()) {
+            return;
+        }
+        AirQualityReading reading;
+        try {
+            reading = producer.apply(location);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to produce air quality reading for " + location + ": " + e.getMessage());
+            return;
+        }
+        for (Consumer<AirQualityReading> subscriber : feed.subscribers) {
+            try {
+                subscriber.accept(reading);
+            } catch (RuntimeException e) {
+                // One broken stream must not starve the others watching this location.
+                System.err.println("Dropping air quality subscriber for " + location + ": " + e.getMessage());
+                unsubscribe(location, subscriber);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package climate.airquality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Site, building, floor and room tree over sensor locations. Each reading is
+ * added to its room and then to every ancestor, so any node's averages and
+ * maxima are read from its own hourly ring without visiting its children.
+ *
+ * <p>Locations that have not been registered are standalone rooms. Registering
+ * one attaches it under a floor and folds the history it already has into its
+ * new ancestors; a room cannot be moved once attached.
+ */
+public class LocationHierarchy {
+    private static final long HOUR_MILLIS = 3600 * 1000L;
+    private static final int RETAINED_HOURS = AirQualitySketches.RETAINED_HOURS;
+    private static final int METRICS = AirQualitySketches.Metric.values().length;
+
+    public enum Level { SITE, BUILDING, FLOOR, ROOM }
+
+    public static class Node {
+        final String path;
+        final Level level;
+        final String location;  // rooms only
+        final List<Node> children = new CopyOnWriteArrayList<>();
+        final HourlyStats stats = new HourlyStats();
+        volatile Node parent;
+
+        Node(String path, Level level, String location, Node parent) {
+            this.path = path;
+            this.level = level;
+            this.location = location;
+            this.parent = parent;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        public List<String> getChildPaths() {
+            List<String> paths = new ArrayList<>();
+            for (Node child : children) {
+                paths.add(child.path);
+            }
+            return paths;
+        }
+    }
+
+    public static class Summary {
+        final long count;
+        final double[] average;
+        final float[] max;
+
+        Summary(long count, double[] average, float[] max) {
+            this.count = count;
+            this.average = average;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getAverage(AirQualitySketches.Metric metric) {
+            return average[metric.ordinal()];
+        }
+
+        public float getMax(AirQualitySketches.Metric metric) {
+            return max[metric.ordinal()];
+        }
+    }
+
+    /** Count, per-metric sum and per-metric maximum for each of the retained hours. */
+    private static class HourlyStats {
+        private final long[] hours = new long[RETAINED_HOURS];
+        private final long[] counts = new long[RETAINED_HOURS];
+        private final double[][] sums = new double[RETAINED_HOURS][METRICS];
+        private final float[][] maxima = new float[RETAINED_HOURS][METRICS];
+
+        HourlyStats() {
+            Arrays.fill(hours, Long.MIN_VALUE);
+        }
+
+        synchronized void add(long hour, long count, double[] sum, float[] max) {
+            int slot = (int) Math.floorMod(hour, (long) RETAINED_HOURS);
+            if (hours[slot] != hour) {
+                if (hours[slot] > hour) {
+                    return;  // older than anything still retained
+                }
+                hours[slot] = hour;
+                counts[slot] = 0;
+                Arrays.fill(sums[slot], 0);
+                Arrays.fill(maxima[slot], Float.NEGATIVE_INFINITY);
+            }
+            counts[slot] += count;
+            for (int m = 0; m < METRICS; m++) {
+                sums[slot][m] += sum[m];
+                maxima[slot][m] = Math.max(maxima[slot][m], max[m]);
+            }
+        }
+
+        synchronized void addTo(HourlyStats target) {
+            for (int slot = 0; slot < RETAINED_HOURS; slot++) {
+                if (hours[slot] != Long.MIN_VALUE) {
+                    target.add(hours[slot], counts[slot], sums[slot], maxima[slot]);
+                }
+            }
+        }
+
+        synchronized Summary summarize(long fromHour, long toHour) {
+            long count = 0;
+            double[] sum = new double[METRICS];
+            float[] max = new float[METRICS];
+            for (int slot = 0; slot < RETAINED_HOURS; slot++) {
+                if (hours[slot] >= fromHour && hours[slot] < toHour && counts[slot] > 0) {
+                    count += counts[slot];
+                    for (int m = 0; m < METRICS; m++) {
+                        sum[m] += sums[slot][m];
+                        max[m] = Math.max(max[m], maxima[slot][m]);
+                    }
+                }
+            }
+            for (int m = 0; m < METRICS; m++) {
+                sum[m] = count == 0 ? 0 : sum[m] / count;
+            }
+            return new Summary(count, sum, max);
+        }
+    }
+
+    private final Map<String, Node> nodesByPath = new ConcurrentHashMap<>();
+    private final Map<String, Node> roomsByLocation = new ConcurrentHashMap<>();
+
+    /**
+     * Places a location under the given floor, creating the floor, building and
+     * site as needed. Throws IllegalStateException if it is already elsewhere.
+     */
+    public synchronized Node register(String location, String floor, String building, String site) {
+        for (String name : new String[]{floor, building, site}) {
+            if (name.isEmpty() || name.contains("/")) {
+                throw new IllegalArgumentException("Invalid hierarchy name: '" + name + "'");
+            }
+        }
+        if (location.isEmpty()) {
+            throw new IllegalArgumentException("Location must not be empty");
+        }
+
+        Node siteNode = child(null, site, Level.SITE);
+        Node buildingNode = child(siteNode, building, Level.BUILDING);
+        Node floorNode = child(buildingNode, floor, Level.FLOOR);
+
+        Node room = room(location);
+        synchronized (room) {
+            if (room.parent == floorNode) {
+                return room;
+            }
+            if (room.parent != null) {
+                throw new IllegalStateException(location + " is already registered under " + room.parent.path);
+            }
+            // Under the room's lock so no reading is counted both here and on its way up.
+            room.parent = floorNode;
+            floorNode.children.add(room);
+            for (Node ancestor = floorNode; ancestor != null; ancestor = ancestor.parent) {
+                room.stats.addTo(ancestor.stats);
+            }
+        }
+        return room;
+    }
+
+    public void add(String location, long timestamp, AirQualityReading reading) {
+        long hour = Math.floorDiv(timestamp, HOUR_MILLIS);
+        double[] values = {reading.getCo2(), reading.getNo2(), reading.getPm25()};
+        float[] max = {reading.getCo2(), reading.getNo2(), reading.getPm25()};
+
+        Node room = room(location);
+        Node parent;
+        synchronized (room) {
+            room.stats.add(hour, 1, values, max);
+            parent = room.parent;
+        }
+        for (Node node = parent; node != null; node = node.parent) {
+            node.stats.add(hour, 1, values, max);
+        }
+    }
+
+    /** Looks a node up by its path, or a room by its location name; null if unknown. */
+    public Node find(String name) {
+        Node node = nodesByPath.get(name);
+        return node != null ? node : roomsByLocation.get(name);
+    }
+
+    public Summary summarize(Node node, long from, long to) {
+        return node.stats.summarize(Math.floorDiv(from, HOUR_MILLIS), -Math.floorDiv(-to, HOUR_MILLIS));
+    }
+
+    /** The sensor locations of every room at or below the node. */
+    public List<String> locationsUnder(Node node) {
+        List<String> locations = new ArrayList<>();
+        collectLocations(node, locations);
+        return locations;
+    }
+
+    private void collectLocations(Node node, List<String> locations) {
+        if (node.level == Level.ROOM) {
+            locations.add(node.location);
+        }
+        for (Node child : node.children) {
+            collectLocations(child, locations);
+        }
+    }
+
+    private Node room(String location) {
+        return roomsByLocation.computeIfAbsent(location, l -> new Node(l, Level.ROOM, l, null));
+    }
+
+    private Node child(Node parent, String name, Level level) {
+        String path = parent == null ? name : parent.path + "/" + name;
+        Node node = nodesByPath.get(path);
+        if (node == null) {
+            node = new Node(path, level, null, parent);
+            nodesByPath.put(path, node);
+            if (parent != null) {
+                parent.children.add(node);
+            }
+        } else if (node.level != level) {
+            throw new IllegalArgumentException(path + " is a " + node.level + ", not a " + level);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,108 @@
+package climate.airquality;
+
+import java.util.Arrays;
+
+/**
+ * Quantile sketch with a relative error guarantee, after DDSketch. Values are
+ * counted in logarithmically sized bins, so every reported quantile is within
+ * {@code RELATIVE_ACCURACY} of a true value, and two sketches merge exactly by
+ * adding their bins. Bins span a fixed value range, which bounds memory at a
+ * few kilobytes however many values are added.
+ *
+ * <p>Meant for non-negative measurements: values at or below {@code MIN_VALUE}
+ * are counted as zero and values above {@code MAX_VALUE} as {@code MAX_VALUE}.
+ */
+public class QuantileSketch {
+    private static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_VALUE = 1e-3;
+    private static final double MAX_VALUE = 1e7;
+    private static final int MAX_INDEX = index(MAX_VALUE);
+
+    private long[] counts = new long[0];
+    private int offset;
+    private long zeroCount;
+    private long count;
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value <= MIN_VALUE) {
+            zeroCount++;
+        } else {
+            int index = Math.min(index(value), MAX_INDEX);
+            ensureRange(index, index);
+            counts[index - offset]++;
+        }
+        count++;
+    }
+
+    public void merge(QuantileSketch other) {
+        if (other.counts.length > 0) {
+            ensureRange(other.offset, other.offset + other.counts.length - 1);
+            for (int i = 0; i < other.counts.length; i++) {
+                counts[other.offset + i - offset] += other.counts[i];
+            }
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    /** Returns the value at quantile {@code q} in [0, 1], or 0 if the sketch is empty. */
+    public double quantile(double q) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.floor(q * (count - 1));
+        if (rank < zeroCount) {
+            return 0;
+        }
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return value(offset + i);
+            }
+        }
+        return value(offset + counts.length - 1);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    /** Empties the sketch but keeps its bins allocated for reuse. */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        zeroCount = 0;
+        count = 0;
+    }
+
+    private void ensureRange(int low, int high) {
+        if (counts.length == 0) {
+            counts = new long[high - low + 1];
+            offset = low;
+            return;
+        }
+        int newLow = Math.min(low, offset);
+        int newHigh = Math.max(high, offset + counts.length - 1);
+        if (newLow == offset && newHigh == offset + counts.length - 1) {
+            return;
+        }
+        long[] grown = new long[newHigh - newLow + 1];
+        System.arraycopy(counts, 0, grown, offset - newLow, counts.length);
+        counts = grown;
+        offset = newLow;
+    }
+
+    private static int index(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    // The midpoint of the bin in relative terms, so both of its edges are within the accuracy.
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (1 + GAMMA);
+    }
+}
@@ -0,0 +1,275 @@
+package climate.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Caches query results under a normalized key. Each entry remembers the
+ * partition (a location, a device type) and time range it was computed from.
+ * When new data lands in that range the entry is extended in place, or dropped
+ * if it cannot be, so results stay exact without expiring on a timer. Beyond
+ * {@code maxEntries} the least recently used entry is evicted.
+ *
+ * <p>Writes of the underlying data go through {@link #append}. No lock is held
+ * across writes or loads: a loaded result is only cached if no write landed in
+ * its range while it was computed and none was still in flight when it
+ * finished, otherwise it is returned uncached. That way a cached result never
+ * misses, or double counts, a write made at the same time.
+ */
+public class QueryResultCache<K, V, D> {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+    private static final int LOAD_ATTEMPTS = 3;
+    private static final int WRITE_STRIPES = 16;
+    private static final int SLOT_SPACING = 8;
+
+    public interface Extender<V, D> {
+        /** Folds newly written data into a cached value; returns false if it must be recomputed instead. */
+        boolean extend(V value, long timestamp, D data);
+    }
+
+    private static final class Entry<K, V> {
+        final K key;
+        final String partition;
+        final long from;
+        final long to;
+        // Null while loading; guarded by the entry's monitor.
+        V value;
+        boolean dirty;
+
+        Entry(K key, String partition, long from, long to) {
+            this.key = key;
+            this.partition = partition;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final String name;
+    private final int maxEntries;
+    private final Extender<V, D> extender;
+    private final Map<K, Entry<K, V>> entries;
+    private final Map<String, Set<Entry<K, V>>> byPartition = new ConcurrentHashMap<>();
+    // Writes in progress, per epoch parity and thread stripe; see enterWrite.
+    private final AtomicLongArray activeWrites = new AtomicLongArray(2 * WRITE_STRIPES * SLOT_SPACING);
+    private volatile int writeEpoch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder uncached = new LongAdder();
+    private final LongAdder extensions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public QueryResultCache(String name, int maxEntries, Extender<V, D> extender) {
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.extender = extender;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Renders the cached result for {@code key}, loading it first on a miss. The
+     * value is only touched under its own lock, so {@code view} sees it whole.
+     */
+    public <R> R get(K key, String partition, long from, long to, Supplier<V> loader, Function<V, R> view) {
+        Entry<K, V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.value != null) {
+                    hits.increment();
+                    return view.apply(entry.value);
+                }
+            }
+        }
+
+        misses.increment();
+        V value = null;
+        for (int attempt = 0; attempt < LOAD_ATTEMPTS; attempt++) {
+            // Indexed before loading, so a write that lands meanwhile finds it and marks it dirty.
+            Entry<K, V> loading = new Entry<>(key, partition, from, to);
+            put(loading);
+            value = loader.get();
+            awaitEarlierWrites();
+            synchronized (loading) {
+                if (!loading.dirty) {
+                    loading.value = value;
+                    return view.apply(value);
+                }
+            }
+            remove(loading);
+        }
+        // Writes kept landing in the range; the last result is still current enough to answer with.
+        uncached.increment();
+        return view.apply(value);
+    }
+
+    /**
+     * Runs {@code write} and then folds {@code data} into every cached result of
+     * the given partitions whose range covers {@code timestamp}.
+     */
+    public void append(long timestamp, D data, Runnable write, String... partitions) {
+        append(timestamp, () -> {
+            write.run();
+            return data;
+        }, partitions);
+    }
+
+    /** As above, for writes that only know the data to fold in once they have run; returns that data. */
+    public D append(long timestamp, Supplier<D> write, String... partitions) {
+        int stripe = (int) Thread.currentThread().getId() & (WRITE_STRIPES - 1);
+        int epoch = enterWrite(stripe);
+        try {
+            // Loads that started before this write may or may not see it, so they are not cached.
+            forCovering(timestamp, partitions, entry -> {
+                entry.dirty |= entry.value == null;
+                return true;
+            });
+            D data = write.get();
+            forCovering(timestamp, partitions, entry -> {
+                if (entry.value == null) {
+                    entry.dirty = true;
+                    return true;
+                }
+                if (!extender.extend(entry.value, timestamp, data)) {
+                    return false;
+                }
+                extensions.increment();
+                return true;
+            });
+            return data;
+        } finally {
+            activeWrites.decrementAndGet(slot(epoch, stripe));
+        }
+    }
+
+    /** Drops every entry, for changes that touch all of history such as repricing. */
+    public void invalidateAll() {
+        synchronized (entries) {
+            for (Entry<K, V> entry : entries.values()) {
+                synchronized (entry) {
+                    entry.dirty = true;  // so a load still in progress is not cached
+                }
+            }
+            invalidations.add(entries.size());
+            entries.clear();
+            byPartition.clear();
+        }
+    }
+
+    public double hitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public void logStats() {
+        logger.info("{} cache: {} hits, {} misses ({}% hit rate), {} left uncached, {} extensions, "
+                + "{} invalidations, {} evictions",
+            name, hits.sum(), misses.sum(), String.format("%.1f", hitRate() * 100), uncached.sum(),
+            extensions.sum(), invalidations.sum(), evictions.sum());
+    }
+
+    private void put(Entry<K, V> entry) {
+        synchronized (entries) {
+            Entry<K, V> replaced = entries.put(entry.key, entry);
+            if (replaced != null) {
+                unindex(replaced);
+            }
+            byPartition.computeIfAbsent(entry.partition, p -> ConcurrentHashMap.newKeySet()).add(entry);
+
+            Iterator<Entry<K, V>> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries) {
+                Entry<K, V> evicted = eldest.next();
+                eldest.remove();
+                unindex(evicted);
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Entry<K, V> entry) {
+        synchronized (entries) {
+            if (entries.get(entry.key) == entry) {
+                entries.remove(entry.key);
+            }
+            unindex(entry);
+        }
+    }
+
+    private void unindex(Entry<K, V> entry) {
+        Set<Entry<K, V>> partition = byPartition.get(entry.partition);
+        if (partition != null) {
+            partition.remove(entry);
+        }
+    }
+
+    // Applies action to every entry of the partitions covering timestamp, under the entry's lock; false drops it.
+    private void forCovering(long timestamp, String[] partitions, Predicate<Entry<K, V>> action) {
+        for (String partition : partitions) {
+            Set<Entry<K, V>> covered = byPartition.get(partition);
+            if (covered == null) {
+                continue;
+            }
+            for (Entry<K, V> entry : covered) {
+                if (timestamp < entry.from || timestamp >= entry.to) {
+                    continue;
+                }
+                boolean keep;
+                synchronized (entry) {
+                    keep = action.test(entry);
+                }
+                if (!keep) {
+                    remove(entry);
+                    invalidations.increment();
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes count themselves in a per-thread stripe of the current epoch. A
+     * load that has finished computing starts a new epoch and waits for the old
+     * one to drain, so no write that began before the load was indexed can
+     * reach its entry after the load is published. Writes last microseconds.
+     */
+    private int enterWrite(int stripe) {
+        while (true) {
+            int epoch = writeEpoch;
+            activeWrites.incrementAndGet(slot(epoch, stripe));
+            if (writeEpoch == epoch) {
+                return epoch;
+            }
+            activeWrites.decrementAndGet(slot(epoch, stripe));
+        }
+    }
+
+    private void awaitEarlierWrites() {
+        synchronized (activeWrites) {
+            int epoch = writeEpoch;
+            writeEpoch = epoch + 1;
+            for (int stripe = 0; stripe < WRITE_STRIPES; stripe++) {
+                while (activeWrites.get(slot(epoch, stripe)) != 0) {
+                    Thread.yield();  // the write may be waiting for this core
+                }
+            }
+        }
+    }
+
+    // Slots are a cache line apart so stripes do not share one.
+    private static int slot(int epoch, int stripe) {
+        return ((epoch & 1) * WRITE_STRIPES + stripe) * SLOT_SPACING;
+    }
+}
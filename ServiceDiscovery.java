@@ -1,107 +1,107 @@
 package climate.discovery;
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceEvent;
-import javax.jmdns.ServiceInfo;
-import javax.jmdns.ServiceListener;
+
 import java.io.IOException;
-import java.net.InetAddress;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
-public class ServiceDiscovery {
-    private static final int DISCOVERY_TIMEOUT = 10; // seconds
-    private final JmDNS jmdns;
-    private final Map<String, ServiceInfo> discoveredServices = new HashMap<>();
-    
-    public ServiceDiscovery() throws IOException {
-        this.jmdns = JmDNS.create(InetAddress.getLocalHost());
+/**
+ * Registers and finds services. Backends are picked with the
+ * {@code climate.discovery} system property: {@code jmdns} (the default) uses
+ * multicast DNS, {@code static} reads instances from the properties file named
+ * by {@code climate.discovery.file}, and {@code inprocess} shares one registry
+ * across everything in the JVM. The last two answer without any network round
+ * trip, which suits containers without multicast and tests.
+ */
+public interface ServiceDiscovery {
+    String BACKEND_PROPERTY = "climate.discovery";
+    String FILE_PROPERTY = "climate.discovery.file";
+
+    /** Told about instances of a service type as they appear, change and disappear. */
+    interface InstanceListener {
+        void instanceAdded(ServiceInstance instance);
+
+        /** An instance already known changed, typically its properties. */
+        default void instanceUpdated(ServiceInstance instance) {
+        }
+
+        default void instanceRemoved(ServiceInstance instance) {
+        }
     }
-    
-    
-    public void registerService(String serviceType, String serviceName, int port, 
-                              Map<String, String> metadata) throws IOException {
-        ServiceInfo serviceInfo = ServiceInfo.create(serviceType, serviceName, port, 0, 0, metadata);
-        jmdns.registerService(serviceInfo);
-        System.out.println("Registered service: " + serviceInfo);
+
+    /** A service this process has registered. */
+    interface Registration {
+        ServiceInstance getInstance();
+
+        void updateProperties(Map<String, String> properties);
+
+        void unregister();
     }
-    
-    public ServiceInfo discoverService(String serviceType, String serviceName) throws InterruptedException {
-        CountDownLatch latch = new CountDownLatch(1);
-        ServiceInfo[] foundService = new ServiceInfo[1];
-        
-        ServiceListener listener = new ServiceListener() {
-            @Override
-            public void serviceAdded(ServiceEvent event) {
-                System.out.println("Service added: " + event.getName());
-                jmdns.requestServiceInfo(event.getType(), event.getName());
-            }
-            
-            @Override
-            public void serviceRemoved(ServiceEvent event) {
-                System.out.println("Service removed: " + event.getName());
-                discoveredServices.remove(event.getName());
-            }
-            
-            @Override
-            public void serviceResolved(ServiceEvent event) {
-                System.out.println("Service resolved: " + event.getInfo());
-                if (event.getName().equals(serviceName)) {
-                    discoveredServices.put(event.getName(), event.getInfo());
-                    foundService[0] = event.getInfo();
-                    latch.countDown();
-                }
-            }
-        };
-        
-        jmdns.addServiceListener(serviceType, listener);
-        try {
-            if (!latch.await(DISCOVERY_TIMEOUT, TimeUnit.SECONDS)) {
-                System.err.println("Service discovery timeout");
-                return null;
-            }
-            return foundService[0];
-        } finally {
-            jmdns.removeServiceListener(serviceType, listener);
+
+    static ServiceDiscovery create() throws IOException {
+        String backend = System.getProperty(BACKEND_PROPERTY, "jmdns");
+        switch (backend) {
+            case "jmdns":
+                return new JmdnsServiceDiscovery();
+            case "static":
+                return new StaticServiceDiscovery(Paths.get(System.getProperty(FILE_PROPERTY, "services.properties")));
+            case "inprocess":
+                return InProcessServiceDiscovery.shared();
+            default:
+                throw new IllegalArgumentException("Unknown discovery backend: " + backend);
         }
     }
-    
-    public void discoverServicesAsync(String serviceType, Consumer<ServiceInfo> callback) {
-        ServiceListener listener = new ServiceListener() {
-            @Override
-            public void serviceAdded(ServiceEvent event) {
-                jmdns.requestServiceInfo(event.getType(), event.getName());
-            }
-            
-            @Override
-            public void serviceRemoved(ServiceEvent event) {
-                discoveredServices.remove(event.getName());
-            }
-            
-            @Override
-            public void serviceResolved(ServiceEvent event) {
-                discoveredServices.put(event.getName(), event.getInfo());
-                callback.accept(event.getInfo());
-            }
-        };
-        
-        jmdns.addServiceListener(serviceType, listener);
+
+    /** Registers a service on this host. */
+    Registration register(String serviceType, String serviceName, int port,
+                          Map<String, String> properties) throws IOException;
+
+    /**
+     * Resolves an instance by name, or any instance of the type if the name is
+     * null or empty. Completes with null if none turns up within the timeout.
+     */
+    CompletableFuture<ServiceInstance> lookup(String serviceType, String serviceName);
+
+    /** Adds a listener for a type; it is first told about every instance already known. */
+    void addInstanceListener(String serviceType, InstanceListener listener);
+
+    void removeInstanceListener(String serviceType, InstanceListener listener);
+
+    Map<String, ServiceInstance> listDiscoveredServices(String serviceType);
+
+    void shutdown() throws IOException;
+
+    /** Starts lookups for every type at once; the map holds whichever instances were found. */
+    default CompletableFuture<Map<String, ServiceInstance>> resolveAll(String... serviceTypes) {
+        Map<String, CompletableFuture<ServiceInstance>> lookups = new HashMap<>();
+        for (String type : serviceTypes) {
+            lookups.put(type, lookup(type, null));
+        }
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture[0]))
+            .thenApply(ignored -> {
+                Map<String, ServiceInstance> found = new HashMap<>();
+                lookups.forEach((type, lookup) -> {
+                    if (lookup.join() != null) {
+                        found.put(type, lookup.join());
+                    }
+                });
+                return found;
+            });
     }
-    
-    public Map<String, ServiceInfo> listDiscoveredServices(String serviceType) {
-        Map<String, ServiceInfo> result = new HashMap<>();
-        for (Map.Entry<String, ServiceInfo> entry : discoveredServices.entrySet()) {
-            if (entry.getValue().getType().equals(serviceType)) {
-                result.put(entry.getKey(), entry.getValue());
-            }
+
+    default ServiceInstance discoverService(String serviceType, String serviceName) throws InterruptedException {
+        try {
+            return lookup(serviceType, serviceName).get();
+        } catch (ExecutionException e) {
+            System.err.println("Service discovery failed: " + e.getCause().getMessage());
+            return null;
         }
-        return result;
     }
-    
-    public void shutdown() throws IOException {
-        jmdns.close();
+
+    default void discoverServicesAsync(String serviceType, Consumer<ServiceInstance> callback) {
+        addInstanceListener(serviceType, callback::accept);
     }
 }
-
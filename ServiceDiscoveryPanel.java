@@ -3,18 +3,18 @@ package climate.client;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import javax.jmdns.ServiceInfo;
+import climate.discovery.ServiceInstance;
 
 public class ServiceDiscoveryPanel extends JPanel {
     private final ClimateControlGUI parent;
-    private DefaultListModel<ServiceInfo> serviceListModel;
+    private DefaultListModel<ServiceInstance> serviceListModel;
     
     public ServiceDiscoveryPanel(ClimateControlGUI parent) {
         this.parent = parent;
         setLayout(new BorderLayout());
         
         serviceListModel = new DefaultListModel<>();
-        JList<ServiceInfo> serviceList = new JList<>(serviceListModel);
+        JList<ServiceInstance> serviceList = new JList<>(serviceListModel);
         serviceList.setCellRenderer(new ServiceListRenderer());
         
         JScrollPane scrollPane = new JScrollPane(serviceList);
@@ -37,7 +37,7 @@ public class ServiceDiscoveryPanel extends JPanel {
         parent.log("Starting service discovery...");
     }
     
-    private void connectToSelected(ServiceInfo info) {
+    private void connectToSelected(ServiceInstance info) {
         if (info == null) {
             JOptionPane.showMessageDialog(this, "Please select a service first");
             return;
@@ -60,10 +60,10 @@ public class ServiceDiscoveryPanel extends JPanel {
             
             super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
             
-            if (value instanceof ServiceInfo) {
-                ServiceInfo info = (ServiceInfo) value;
+            if (value instanceof ServiceInstance) {
+                ServiceInstance info = (ServiceInstance) value;
                 setText(info.getName() + " (" + info.getType() + ")");
-                setToolTipText("Address: " + info.getHostAddresses()[0] + 
+                setToolTipText("Address: " + info.getHostAddresses().get(0) + 
                     ":" + info.getPort());
             }
             
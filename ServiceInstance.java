@@ -0,0 +1,65 @@
+package climate.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A discovered or registered service instance, independent of the backend
+ * that found it. Immutable; a changed TXT record or address is a new instance.
+ */
+public final class ServiceInstance {
+    private final String type;
+    private final String name;
+    private final List<String> hostAddresses;
+    private final int port;
+    private final Map<String, String> properties;
+
+    public ServiceInstance(String type, String name, List<String> hostAddresses, int port,
+                           Map<String, String> properties) {
+        this.type = type;
+        this.name = name;
+        this.hostAddresses = Collections.unmodifiableList(new ArrayList<>(hostAddresses));
+        this.port = port;
+        this.properties = Collections.unmodifiableMap(new HashMap<>(properties));
+    }
+
+    public ServiceInstance withProperties(Map<String, String> properties) {
+        return new ServiceInstance(type, name, hostAddresses, port, properties);
+    }
+
+    public ServiceInstance withHostAddresses(List<String> hostAddresses) {
+        return new ServiceInstance(type, name, hostAddresses, port, properties);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getHostAddresses() {
+        return hostAddresses;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    public String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + type + ") at " + hostAddresses + ":" + port;
+    }
+}
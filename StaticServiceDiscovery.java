@@ -0,0 +1,61 @@
+package climate.discovery;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Discovery from a fixed list of instances in a properties file, one per line:
+ *
+ * <pre>
+ * _thermostat._tcp.local./SmartThermostatService = localhost:50052
+ * _emissions._tcp.local./CarbonEmissionTrackerService = 10.0.0.5:50053; region=north
+ * </pre>
+ *
+ * Anything after the address is read as {@code key=value} properties. Services
+ * registered at runtime are added to the in-memory list but not written back.
+ */
+public class StaticServiceDiscovery extends InProcessServiceDiscovery {
+
+    public StaticServiceDiscovery(Path file) throws IOException {
+        Properties entries = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            entries.load(reader);
+        }
+        for (String key : entries.stringPropertyNames()) {
+            add(parse(key, entries.getProperty(key), file));
+        }
+        System.out.println("Loaded " + entries.size() + " static service entries from " + file);
+    }
+
+    private static ServiceInstance parse(String key, String value, Path file) throws IOException {
+        int slash = key.lastIndexOf('/');
+        String[] parts = value.split(";");
+        int colon = parts[0].lastIndexOf(':');
+        if (slash <= 0 || slash == key.length() - 1 || colon <= 0) {
+            throw new IOException("Malformed entry in " + file + ": " + key + " = " + value);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(parts[0].substring(colon + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed port in " + file + ": " + key + " = " + value);
+        }
+
+        Map<String, String> properties = new HashMap<>();
+        for (String property : Arrays.asList(parts).subList(1, parts.length)) {
+            int equals = property.indexOf('=');
+            if (equals > 0) {
+                properties.put(property.substring(0, equals).trim(), property.substring(equals + 1).trim());
+            }
+        }
+        return new ServiceInstance(key.substring(0, slash), key.substring(slash + 1),
+            Collections.singletonList(parts[0].substring(0, colon).trim()), port, properties);
+    }
+}
@@ -4,6 +4,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.event.*;
+import io.grpc.Status;
 
 public class ThermostatControlPanel extends JPanel {
     private final ClimateControlGUI parent;
@@ -68,8 +69,24 @@ public class ThermostatControlPanel extends JPanel {
         String room = (String) roomCombo.getSelectedItem();
         int temp = tempSlider.getValue();
         
-        parent.log("Setting temperature in " + room + " to " + temp + "°C");
+        AsyncThermostatClient client = parent.getThermostatClient();
+        if (client == null) {
+            parent.log("Not connected to a Thermostat service");
+            return;
+        }
         
+        parent.log("Setting temperature in " + room + " to " + temp + "°C");
+        setTempBtn.setEnabled(false);
+        parent.getEdt().deliver(client.setTemperature(room, temp),
+            response -> {
+                setTempBtn.setEnabled(true);
+                powerUsageLabel.setText("Power usage: " + response.getPowerUsage());
+                parent.log("Thermostat: " + response.getStatus());
+            },
+            error -> {
+                setTempBtn.setEnabled(true);
+                parent.log("Failed to set temperature: " + Status.fromThrowable(error).getDescription());
+            });
     }
     
     private void sendOccupancyUpdate() {
@@ -1,21 +1,28 @@
 package climate.thermostat;
 
+import climate.discovery.LoadReporter;
+import climate.discovery.ServiceDiscovery;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 import io.grpc.stub.StreamObserver;
-import javax.jmdns.JmDNS;
-import javax.jmdns.ServiceInfo;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class ThermostatServer {
+    // Clients ping every 30s (ChannelManager); the gRPC default of 5 minutes would GOAWAY them.
+    private static final long PERMIT_KEEPALIVE_SECONDS = 20;
     private Server server;
     private final int port;
     private final String serviceType = "_thermostat._tcp.local.";
     private final String serviceName = "SmartThermostatService";
+    private ServiceDiscovery discovery;
+    private ServiceDiscovery.Registration registration;
+    private final LoadReporter loadReporter =
+        new LoadReporter(Collections.singletonMap("description", "Smart Thermostat Service"));
     private final Map<String, Float> roomTemperatures = new HashMap<>();
 
     public ThermostatServer(int port) {
@@ -27,11 +34,13 @@ public class ThermostatServer {
 
     public void start() throws IOException {
         server = ServerBuilder.forPort(port)
-                .addService(new SmartThermostatImpl())
+                .permitKeepAliveTime(PERMIT_KEEPALIVE_SECONDS, TimeUnit.SECONDS)
+                .permitKeepAliveWithoutCalls(true)
+                .addService(ServerInterceptors.intercept(new SmartThermostatImpl(), loadReporter))
                 .build()
                 .start();
         
-        registerWithJmDNS();
+        registerService();
         
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.err.println("Shutting down gRPC server");
@@ -43,20 +52,29 @@ public class ThermostatServer {
         }));
     }
 
-    private void stop() throws InterruptedException {
+    public void stop() throws InterruptedException {
+        // Unregister first so clients stop picking this instance while it drains.
+        loadReporter.shutdown();
+        if (registration != null) {
+            registration.unregister();
+            try {
+                discovery.shutdown();
+            } catch (IOException e) {
+                System.err.println("Could not shut down service discovery: " + e.getMessage());
+            }
+        }
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
     }
 
-    private void registerWithJmDNS() {
+    private void registerService() {
         try {
-            JmDNS jmdns = JmDNS.create(InetAddress.getLocalHost());
-            ServiceInfo serviceInfo = ServiceInfo.create(serviceType, serviceName, port, "Smart Thermostat Service");
-            jmdns.registerService(serviceInfo);
-            System.out.println("Registered service with jmDNS: " + serviceInfo);
+            discovery = ServiceDiscovery.create();
+            registration = discovery.register(serviceType, serviceName, port, loadReporter.properties());
+            loadReporter.start(registration);
         } catch (IOException e) {
-            System.err.println("Could not register with jmDNS: " + e.getMessage());
+            System.err.println("Could not register service: " + e.getMessage());
         }
     }
 
@@ -0,0 +1,446 @@
+package climate.emissions;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
+
+/**
+ * Heaviest emitters per day and week, tracked with the space-saving algorithm.
+ * Each window keeps a fixed number of counters however many devices report, so
+ * reported totals may overestimate a device by at most its error bound. A
+ * device that is not tracked takes over the smallest counter, found through a
+ * min-heap, so an add costs O(log COUNTERS_PER_SHARD) and allocates nothing
+ * once the window is full. Devices are sharded by id, so concurrent streams
+ * mostly take different locks.
+ *
+ * <p>Counters keep their kWh per hour and are priced as they are added, under
+ * the window's lock, so {@link #reprice} can recompute them when factors or
+ * classification rules change.
+ *
+ * <p>Only usage reported with a device id is ranked. History and imports keep
+ * device types alone, so instead of being replayed into the tracker on startup
+ * the counters themselves are persisted with {@link #writeTo}.
+ */
+public class TopEmitterTracker {
+    private static final int COUNTERS_PER_WINDOW = 128;
+    private static final int SHARDS = 8;
+    private static final int COUNTERS_PER_SHARD = COUNTERS_PER_WINDOW / SHARDS;
+    private static final int RETAINED_WINDOWS = 4;
+    private static final int FORMAT_VERSION = 2;  // 2: counters grouped by shard
+
+    /** Windows in UTC: days from midnight, weeks from Monday midnight. */
+    public enum Period {
+        DAY(EmissionRollups.DAY_MILLIS, 0),
+        WEEK(7 * EmissionRollups.DAY_MILLIS, 4 * EmissionRollups.DAY_MILLIS);  // the epoch fell on a Thursday
+
+        final long millis;
+        final long offset;
+
+        Period(long millis, long offset) {
+            this.millis = millis;
+            this.offset = offset;
+        }
+
+        long start(long timestamp) {
+            return EmissionRollups.floor(timestamp - offset, millis) + offset;
+        }
+    }
+
+    public static class Emitter {
+        final String id;
+        final double co2;
+        final double maxError;
+
+        Emitter(String id, double co2, double maxError) {
+            this.id = id;
+            this.co2 = co2;
+            this.maxError = maxError;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getCo2() {
+            return co2;
+        }
+
+        public double getMaxError() {
+            return maxError;
+        }
+    }
+
+    private static class Counter {
+        String id;
+        String deviceType;
+        final double[] kwh;
+        double[] errorKwh;  // usage inherited from evicted counters; allocated once and reused by later evictions
+        boolean inherited;
+        double co2;
+        double error;
+        int heapIndex;
+
+        Counter(int hours) {
+            kwh = new double[hours];
+        }
+    }
+
+    /*
+     * A window's devices are split by id hash over SHARDS independent
+     * space-saving summaries, each under its own lock, so concurrent ingest
+     * streams rarely contend. Each shard sees only its own devices, so its
+     * bounds hold unchanged and the window's top is the union of the shards'.
+     */
+    private class Window {
+        private final long start;
+        private final int hours;
+        private final Shard[] shards = new Shard[SHARDS];
+
+        Window(long start, Period period) {
+            this.start = start;
+            this.hours = (int) (period.millis / EmissionRollups.HOUR_MILLIS);
+            for (int i = 0; i < SHARDS; i++) {
+                shards[i] = new Shard(start, hours);
+            }
+        }
+
+        Shard shard(String id) {
+            return shards[Math.floorMod(id.hashCode(), SHARDS)];
+        }
+
+        void add(String id, String deviceType, long timestamp, double kwh) {
+            shard(id).add(id, deviceType, timestamp, kwh);
+        }
+
+        void reprice() {
+            for (Shard shard : shards) {
+                shard.reprice();
+            }
+        }
+
+        List<Emitter> top(int limit) {
+            List<Emitter> top = new ArrayList<>();
+            for (Shard shard : shards) {
+                top.addAll(shard.top(limit));
+            }
+            top.sort(Comparator.comparingDouble((Emitter e) -> e.co2).reversed());
+            return top.size() > limit ? new ArrayList<>(top.subList(0, limit)) : top;
+        }
+
+        Emitter heaviest(Collection<String> ids) {
+            Emitter heaviest = null;
+            for (String id : ids) {
+                Emitter emitter = shard(id).get(id);
+                if (emitter != null && (heaviest == null || emitter.co2 > heaviest.co2)) {
+                    heaviest = emitter;
+                }
+            }
+            return heaviest;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(start);
+            out.writeInt(SHARDS);
+            for (Shard shard : shards) {
+                shard.writeTo(out);
+            }
+        }
+
+        void readCounters(DataInputStream in) throws IOException {
+            int shardCount = in.readInt();
+            if (shardCount < 0 || shardCount > COUNTERS_PER_WINDOW) {
+                throw new IOException("Corrupt top emitter window: " + shardCount + " shards");
+            }
+            for (int i = 0; i < shardCount; i++) {
+                int count = in.readInt();
+                if (count < 0 || count > COUNTERS_PER_WINDOW) {
+                    throw new IOException("Corrupt top emitter window: " + count + " counters");
+                }
+                for (int c = 0; c < count; c++) {
+                    Counter counter = read(in);
+                    shard(counter.id).put(counter);
+                }
+            }
+            reprice();  // CO2 is not stored; it is priced from the current factors, which also orders the heaps
+        }
+
+        Counter read(DataInputStream in) throws IOException {
+            Counter counter = new Counter(hours);
+            counter.id = in.readUTF();
+            counter.deviceType = in.readUTF();
+            readHours(in, counter.kwh);
+            if (in.readBoolean()) {
+                counter.errorKwh = new double[hours];
+                counter.inherited = true;
+                readHours(in, counter.errorKwh);
+            }
+            return counter;
+        }
+    }
+
+    /*
+     * Counters are also kept in a min-heap on CO2, each knowing its position,
+     * so the smallest is found in O(1) and a changed counter is moved in
+     * O(log COUNTERS_PER_SHARD).
+     */
+    private class Shard {
+        private final long start;
+        private final int hours;
+        private final Map<String, Counter> counters = new HashMap<>();
+        private final Counter[] heap = new Counter[COUNTERS_PER_SHARD];
+        private int size;
+
+        Shard(long start, int hours) {
+            this.start = start;
+            this.hours = hours;
+        }
+
+        synchronized void add(String id, String deviceType, long timestamp, double kwh) {
+            Counter counter = counters.get(id);
+            if (counter == null) {
+                if (size < COUNTERS_PER_SHARD) {
+                    counter = new Counter(hours);
+                    counter.heapIndex = size;
+                    heap[size++] = counter;
+                } else {
+                    // Replace the smallest counter; its count bounds what the newcomer may have missed.
+                    counter = heap[0];
+                    counters.remove(counter.id);
+                    if (counter.errorKwh == null) {
+                        counter.errorKwh = new double[hours];
+                    }
+                    System.arraycopy(counter.kwh, 0, counter.errorKwh, 0, hours);
+                    counter.inherited = true;
+                    counter.error = counter.co2;
+                }
+                counter.id = id;
+                counter.deviceType = deviceType;
+                counters.put(id, counter);
+            }
+            counter.kwh[(int) ((timestamp - start) / EmissionRollups.HOUR_MILLIS)] += kwh;
+            counter.co2 += kwh * factorAt.applyAsDouble(sourceOf.apply(deviceType), timestamp);
+            siftDown(siftUp(counter.heapIndex));
+        }
+
+        private int siftUp(int index) {
+            Counter counter = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (heap[parent].co2 <= counter.co2) {
+                    break;
+                }
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(counter, index);
+            return index;
+        }
+
+        private void siftDown(int index) {
+            Counter counter = heap[index];
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1].co2 < heap[child].co2) {
+                    child++;
+                }
+                if (counter.co2 <= heap[child].co2) {
+                    break;
+                }
+                place(heap[child], index);
+                index = child;
+            }
+            place(counter, index);
+        }
+
+        private void place(Counter counter, int index) {
+            heap[index] = counter;
+            counter.heapIndex = index;
+        }
+
+        // Inherited usage is repriced as the current device's, which keeps co2 - error its own exact total.
+        synchronized void reprice() {
+            for (Counter counter : counters.values()) {
+                String source = sourceOf.apply(counter.deviceType);
+                counter.co2 = price(counter.kwh, source);
+                counter.error = counter.inherited ? price(counter.errorKwh, source) : 0;
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private double price(double[] kwh, String source) {
+            double co2 = 0;
+            for (int hour = 0; hour < kwh.length; hour++) {
+                if (kwh[hour] != 0) {
+                    co2 += kwh[hour] * factorAt.applyAsDouble(source, start + hour * EmissionRollups.HOUR_MILLIS);
+                }
+            }
+            return co2;
+        }
+
+        synchronized List<Emitter> top(int limit) {
+            return counters.values().stream()
+                .sorted(Comparator.comparingDouble((Counter c) -> c.co2).reversed())
+                .limit(limit)
+                .map(c -> new Emitter(c.id, c.co2, c.error))
+                .collect(Collectors.toList());
+        }
+
+        synchronized Emitter get(String id) {
+            Counter counter = counters.get(id);
+            return counter == null ? null : new Emitter(counter.id, counter.co2, counter.error);
+        }
+
+        synchronized void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(counters.size());
+            for (Counter counter : counters.values()) {
+                out.writeUTF(counter.id);
+                out.writeUTF(counter.deviceType);
+                writeHours(out, counter.kwh);
+                out.writeBoolean(counter.inherited);
+                if (counter.inherited) {
+                    writeHours(out, counter.errorKwh);
+                }
+            }
+        }
+
+        // For restoring counters; the caller reprices afterwards, which orders the heap.
+        synchronized void put(Counter counter) throws IOException {
+            if (size == COUNTERS_PER_SHARD) {
+                throw new IOException("More than " + COUNTERS_PER_SHARD + " counters in one shard");
+            }
+            if (counters.putIfAbsent(counter.id, counter) != null) {
+                throw new IOException("Device " + counter.id + " counted twice in one window");
+            }
+            counter.heapIndex = size;
+            heap[size++] = counter;
+        }
+    }
+
+    // Most hours of a window are empty, so only the others are written.
+    private static void writeHours(DataOutputStream out, double[] kwh) throws IOException {
+        int used = 0;
+        for (double hour : kwh) {
+            used += hour != 0 ? 1 : 0;
+        }
+        out.writeInt(used);
+        for (int hour = 0; hour < kwh.length; hour++) {
+            if (kwh[hour] != 0) {
+                out.writeInt(hour);
+                out.writeDouble(kwh[hour]);
+            }
+        }
+    }
+
+    private static void readHours(DataInputStream in, double[] kwh) throws IOException {
+        int used = in.readInt();
+        for (int i = 0; i < used; i++) {
+            int hour = in.readInt();
+            if (hour < 0 || hour >= kwh.length) {
+                throw new IOException("Hour " + hour + " outside a window of " + kwh.length);
+            }
+            kwh[hour] = in.readDouble();
+        }
+    }
+
+    private final Map<Period, ConcurrentSkipListMap<Long, Window>> windows = new HashMap<>();
+    private final Function<String, String> sourceOf;
+    private final ToDoubleBiFunction<String, Long> factorAt;
+
+    /** Prices usage through {@code sourceOf} and {@code factorAt}, which should read the current rules and factors. */
+    public TopEmitterTracker(Function<String, String> sourceOf, ToDoubleBiFunction<String, Long> factorAt) {
+        this.sourceOf = sourceOf;
+        this.factorAt = factorAt;
+        for (Period period : Period.values()) {
+            windows.put(period, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    public void add(String id, String deviceType, long timestamp, double kwh) {
+        for (Period period : Period.values()) {
+            ConcurrentSkipListMap<Long, Window> periodWindows = windows.get(period);
+            long start = period.start(timestamp);
+            Window window = periodWindows.get(start);
+            if (window == null) {
+                if (!periodWindows.isEmpty()
+                        && start < periodWindows.lastKey() - (RETAINED_WINDOWS - 1) * period.millis) {
+                    continue;  // older than anything still retained
+                }
+                window = periodWindows.computeIfAbsent(start, k -> new Window(k, period));
+                while (periodWindows.size() > RETAINED_WINDOWS) {
+                    periodWindows.pollFirstEntry();
+                }
+            }
+            window.add(id, deviceType, timestamp, kwh);
+        }
+    }
+
+    /** Recomputes the windows overlapping {@code [from, to)} after factors or rules changed there. */
+    public void reprice(long from, long to) {
+        for (Period period : Period.values()) {
+            ConcurrentSkipListMap<Long, Window> periodWindows = windows.get(period);
+            long first = from == Long.MIN_VALUE ? Long.MIN_VALUE : period.start(from);
+            for (Window window : periodWindows.subMap(first, true, to, false).values()) {
+                window.reprice();
+            }
+        }
+    }
+
+    public List<Emitter> top(Period period, long at, int limit) {
+        Window window = windows.get(period).get(period.start(at));
+        return window == null ? new ArrayList<>() : window.top(limit);
+    }
+
+    /** The heaviest of the given devices in the window containing {@code at}, or null if none is ranked. */
+    public Emitter heaviest(Period period, long at, Collection<String> ids) {
+        Window window = windows.get(period).get(period.start(at));
+        return window == null ? null : window.heaviest(ids);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        for (Period period : Period.values()) {
+            Collection<Window> periodWindows = windows.get(period).values();
+            out.writeInt(periodWindows.size());
+            for (Window window : periodWindows) {
+                window.writeTo(out);
+            }
+        }
+    }
+
+    /** Restores counters written by {@link #writeTo}; call before any usage is added. */
+    public void readFrom(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported top emitter format " + version);
+        }
+        for (Period period : Period.values()) {
+            ConcurrentSkipListMap<Long, Window> periodWindows = windows.get(period);
+            int count = in.readInt();
+            for (int w = 0; w < count; w++) {
+                long start = in.readLong();
+                if (start != period.start(start)) {
+                    throw new IOException(period + " window at " + start + " is not aligned");
+                }
+                periodWindows.computeIfAbsent(start, k -> new Window(k, period)).readCounters(in);
+            }
+            while (periodWindows.size() > RETAINED_WINDOWS) {
+                periodWindows.pollFirstEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package climate.emissions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * Full-history trend analysis as a fork/join job. The usage chunks are split
+ * recursively across the pool; each leaf scans its columns into per-device-type
+ * sums for the current and previous window of every period, and the partial
+ * sums are added together on the way back up.
+ */
+public class TrendAnalyzer {
+    private static final int LEAF_CHUNKS = 64;
+
+    public enum Period {
+        DAY(1), WEEK(7), MONTH(30), YEAR(365);
+
+        final long millis;
+
+        Period(int days) {
+            this.millis = days * EmissionRollups.DAY_MILLIS;
+        }
+    }
+
+    public static class Trend {
+        final Period period;
+        final double co2;
+        final double previousCo2;
+        final Map<String, Double> co2BySource;
+
+        Trend(Period period, double co2, double previousCo2, Map<String, Double> co2BySource) {
+            this.period = period;
+            this.co2 = co2;
+            this.previousCo2 = previousCo2;
+            this.co2BySource = co2BySource;
+        }
+
+        public Period getPeriod() {
+            return period;
+        }
+
+        public double getCo2() {
+            return co2;
+        }
+
+        public double getPreviousCo2() {
+            return previousCo2;
+        }
+
+        public Map<String, Double> getCo2BySource() {
+            return co2BySource;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    public TrendAnalyzer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public List<Trend> analyze(UsageStore.Snapshot snapshot, Function<String, String> sourceOf,
+                               EmissionFactorTable factors, long now) {
+        List<UsageStore.ColumnChunk> chunks = snapshot.chunks();
+        int deviceTypes = snapshot.deviceTypeCount();
+        String[] sources = new String[deviceTypes];
+        for (int code = 0; code < deviceTypes; code++) {
+            sources[code] = sourceOf.apply(snapshot.deviceType(code));
+        }
+
+        // sums[2 * period] is the current window, sums[2 * period + 1] the one before it.
+        double[][] sums = pool.invoke(new ScanTask(chunks, 0, chunks.size(), sources, factors, now));
+
+        List<Trend> trends = new ArrayList<>();
+        for (Period period : Period.values()) {
+            double[] current = sums[2 * period.ordinal()];
+            double[] previous = sums[2 * period.ordinal() + 1];
+            double co2 = 0;
+            double previousCo2 = 0;
+            Map<String, Double> bySource = new LinkedHashMap<>();
+            for (int code = 0; code < deviceTypes; code++) {
+                co2 += current[code];
+                previousCo2 += previous[code];
+                if (current[code] != 0) {
+                    bySource.merge(sources[code], current[code], Double::sum);
+                }
+            }
+            trends.add(new Trend(period, co2, previousCo2, bySource));
+        }
+        return trends;
+    }
+
+    private static class ScanTask extends RecursiveTask<double[][]> {
+        private final List<UsageStore.ColumnChunk> chunks;
+        private final int from;
+        private final int to;
+        private final String[] sources;
+        private final EmissionFactorTable factors;
+        private final long now;
+
+        ScanTask(List<UsageStore.ColumnChunk> chunks, int from, int to, String[] sources,
+                 EmissionFactorTable factors, long now) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.sources = sources;
+            this.factors = factors;
+            this.now = now;
+        }
+
+        @Override
+        protected double[][] compute() {
+            if (to - from > LEAF_CHUNKS) {
+                int mid = (from + to) >>> 1;
+                ScanTask left = new ScanTask(chunks, from, mid, sources, factors, now);
+                left.fork();
+                double[][] right = new ScanTask(chunks, mid, to, sources, factors, now).compute();
+                double[][] merged = left.join();
+                for (int w = 0; w < merged.length; w++) {
+                    for (int code = 0; code < merged[w].length; code++) {
+                        merged[w][code] += right[w][code];
+                    }
+                }
+                return merged;
+            }
+
+            Period[] periods = Period.values();
+            double[][] sums = new double[2 * periods.length][sources.length];
+            long oldest = now - 2 * Period.YEAR.millis;
+            for (int c = from; c < to; c++) {
+                UsageStore.ColumnChunk chunk = chunks.get(c);
+                if (chunk.maxTimestamp < oldest) {
+                    continue;
+                }
+                for (int i = 0; i < chunk.size; i++) {
+                    long age = now - chunk.timestamps[i];
+                    if (age > 2 * Period.YEAR.millis) {
+                        continue;
+                    }
+                    int code = chunk.deviceCodes[i];
+                    double co2 = chunk.durationHours[i] * chunk.powerKw[i]
+                        * factors.factorAt(sources[code], chunk.timestamps[i]);
+                    for (Period period : periods) {
+                        if (age <= period.millis) {
+                            sums[2 * period.ordinal()][code] += co2;
+                        } else if (age <= 2 * period.millis) {
+                            sums[2 * period.ordinal() + 1][code] += co2;
+                        }
+                    }
+                }
+            }
+            return sums;
+        }
+    }
+}
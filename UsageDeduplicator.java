@@ -0,0 +1,257 @@
+package climate.emissions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects repeated idempotency keys. Keys seen in the last few minutes, where
+ * client retries concentrate, are held exactly. Older keys are only remembered
+ * by bloom filters covering an hour each, dropped once they fall out of the
+ * retained partitions, so memory stays bounded.
+ *
+ * <p>Each hour's filter is sized from the previous hour's key count, and when
+ * it fills a new filter with twice the capacity and half the false positive
+ * rate takes over. An hour's filters together therefore stay below
+ * {@code falsePositiveRate / partitions} however many keys arrive, and a fresh
+ * key is wrongly taken for a repeat with probability below
+ * {@code falsePositiveRate}. Rejections made only on a bloom match are counted
+ * apart from exact ones so that bound can be checked in the logs.
+ */
+public class UsageDeduplicator {
+    private static final Logger logger = LoggerFactory.getLogger(UsageDeduplicator.class);
+    private static final long RECENT_WINDOW_MILLIS = 10 * 60 * 1000L;
+    private static final long PARTITION_MILLIS = 3600 * 1000L;
+    private static final int MIN_KEYS_PER_FILTER = 1 << 12;
+    private static final int FORMAT_VERSION = 1;
+
+    private final Map<String, Long> recent = new ConcurrentHashMap<>();
+    private final int partitionCount;
+    private final int initialKeysPerFilter;
+    private final double falsePositiveRate;
+    // Newest first, and only ever replaced whole, so lookups need no lock.
+    private volatile BloomFilter[] filters = new BloomFilter[0];
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder exactRejections = new LongAdder();
+    private final LongAdder bloomRejections = new LongAdder();
+
+    public UsageDeduplicator(int partitionCount, int initialKeysPerFilter, double falsePositiveRate) {
+        this.partitionCount = partitionCount;
+        this.initialKeysPerFilter = Math.max(MIN_KEYS_PER_FILTER, initialKeysPerFilter);
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /** Returns true the first time a key is offered and false for repeats. */
+    public boolean firstSeen(String key, long now) {
+        BloomFilter current = current(now);
+
+        if (recent.containsKey(key)) {
+            exactRejections.increment();
+            return false;
+        }
+        long hash1 = hash(key);
+        long hash2 = mix(hash1);
+        for (BloomFilter filter : filters) {
+            if (filter.mightContain(hash1, hash2)) {
+                bloomRejections.increment();
+                return false;
+            }
+        }
+        if (recent.putIfAbsent(key, now) != null) {
+            exactRejections.increment();
+            return false;
+        }
+        if (current.put(hash1, hash2) >= current.capacity) {
+            rollOver(current);
+        }
+        accepted.increment();
+        return true;
+    }
+
+    public long getBloomRejections() {
+        return bloomRejections.sum();
+    }
+
+    public void logStats() {
+        long bits = 0;
+        for (BloomFilter filter : filters) {
+            bits += filter.bitCount;
+        }
+        logger.info("Idempotency keys: {} accepted, {} exact repeats, {} bloom-only repeats, {} filters ({} KB)",
+            accepted.sum(), exactRejections.sum(), bloomRejections.sum(), filters.length, bits / 8 / 1024);
+    }
+
+    private BloomFilter current(long now) {
+        long partition = now / PARTITION_MILLIS;
+        BloomFilter[] live = filters;
+        if (live.length == 0 || live[0].partition < partition || now - lastPurge > RECENT_WINDOW_MILLIS / 2) {
+            synchronized (this) {
+                live = filters;
+                if (live.length == 0 || live[0].partition < partition) {
+                    startPartition(live, partition);
+                }
+                if (now - lastPurge > RECENT_WINDOW_MILLIS / 2) {
+                    recent.values().removeIf(seen -> seen < now - RECENT_WINDOW_MILLIS);
+                    lastPurge = now;
+                }
+            }
+            live = filters;
+        }
+        return live[0];
+    }
+
+    // Callers hold the monitor.
+    private void startPartition(BloomFilter[] live, long partition) {
+        int lastHourKeys = 0;
+        for (BloomFilter filter : live) {
+            if (filter.partition == live[0].partition) {
+                lastHourKeys += filter.count.get();
+            }
+        }
+        int keys = live.length == 0
+            ? initialKeysPerFilter
+            : Math.max(MIN_KEYS_PER_FILTER, lastHourKeys + lastHourKeys / 4);
+
+        List<BloomFilter> kept = new ArrayList<>();
+        kept.add(new BloomFilter(partition, keys, falsePositiveRate / partitionCount / 2));
+        for (BloomFilter filter : live) {
+            if (filter.partition > partition - partitionCount) {
+                kept.add(filter);
+            }
+        }
+        filters = kept.toArray(new BloomFilter[0]);
+    }
+
+    private synchronized void rollOver(BloomFilter full) {
+        BloomFilter[] live = filters;
+        if (live[0] != full) {
+            return;  // another caller already rolled it, or the hour moved on
+        }
+        BloomFilter[] grown = new BloomFilter[live.length + 1];
+        grown[0] = new BloomFilter(full.partition, (int) Math.min(Integer.MAX_VALUE / 64, 2L * full.capacity),
+            full.falsePositiveRate / 2);
+        System.arraycopy(live, 0, grown, 1, live.length);
+        filters = grown;
+    }
+
+    /** Writes the filters, so keys accepted before a restart are still recognised after it. */
+    public void writeTo(DataOutputStream out) throws IOException {
+        BloomFilter[] live = filters;
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(live.length);
+        for (BloomFilter filter : live) {
+            out.writeLong(filter.partition);
+            out.writeInt(filter.capacity);
+            out.writeDouble(filter.falsePositiveRate);
+            out.writeInt(filter.count.get());
+            out.writeInt(filter.bits.length());
+            for (int i = 0; i < filter.bits.length(); i++) {
+                out.writeLong(filter.bits.get(i));
+            }
+        }
+    }
+
+    /** Restores filters written by {@link #writeTo}, dropping any that have aged out since. */
+    public synchronized void readFrom(DataInputStream in, long now) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported idempotency key format " + version);
+        }
+        List<BloomFilter> restored = new ArrayList<>();
+        int count = in.readInt();
+        for (int f = 0; f < count; f++) {
+            BloomFilter filter = new BloomFilter(in.readLong(), in.readInt(), in.readDouble());
+            filter.count.set(in.readInt());
+            int words = in.readInt();
+            if (words != filter.bits.length()) {
+                throw new IOException("Bloom filter of " + words + " words, expected " + filter.bits.length());
+            }
+            for (int i = 0; i < words; i++) {
+                filter.bits.set(i, in.readLong());
+            }
+            if (filter.partition > now / PARTITION_MILLIS - partitionCount) {
+                restored.add(filter);
+            }
+        }
+        // Anything accepted since startup stays ahead of the restored filters.
+        BloomFilter[] live = filters;
+        List<BloomFilter> merged = new ArrayList<>(Arrays.asList(live));
+        merged.addAll(restored);
+        filters = merged.toArray(new BloomFilter[0]);
+    }
+
+    // 64-bit FNV-1a over the key's characters.
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash | 1;
+    }
+
+    private static class BloomFilter {
+        final long partition;
+        final int capacity;
+        final double falsePositiveRate;
+        final AtomicInteger count = new AtomicInteger();
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        BloomFilter(long partition, int capacity, double falsePositiveRate) {
+            this.partition = partition;
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            long size = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new AtomicLongArray((int) ((size + 63) / 64));
+            this.bitCount = bits.length() * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+        }
+
+        // Returns the number of keys added so far, including this one.
+        int put(long hash1, long hash2) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                do {
+                    current = bits.get(word);
+                } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+            }
+            return count.incrementAndGet();
+        }
+
+        boolean mightContain(long hash1, long hash2) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package climate.emissions;
+
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the heap footprint and scan cost of the columnar {@link UsageStore}
+ * with the layout it replaced, chunks of {@link UsageEntry} messages. Entries
+ * are built the way each layout received them off the wire: the message path
+ * gets its own device type and timestamp strings per entry, and a scan has to
+ * parse the timestamp to filter on it.
+ *
+ * <pre>java -Xmx4g climate.emissions.UsageLayoutBenchmark [entries]</pre>
+ */
+public class UsageLayoutBenchmark {
+    private static final String[] DEVICE_TYPES = {
+        "heater", "air conditioner", "washing machine", "oven", "fridge", "ev charger", "pump", "lighting"};
+    private static final int CHUNK_ENTRIES = 256;
+    private static final long START = 1_700_000_000_000L;
+    private static final int SCANS = 5;
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        long end = START + entries * 1000L;
+
+        long before = usedHeap();
+        List<List<UsageEntry>> messages = buildMessages(entries);
+        long messageBytes = usedHeap() - before;
+
+        before = usedHeap();
+        UsageStore store = buildStore(entries);
+        long columnBytes = usedHeap() - before;
+
+        // All of history, then its last quarter, where the columnar scan skips chunks by time range.
+        long[] fullScan = scan(messages, store, START, end);
+        long[] recentScan = scan(messages, store, START + (end - START) / 4 * 3, end);
+
+        System.out.printf("%d entries, best of %d scans%n", entries, SCANS);
+        System.out.printf("%-10s %10s %12s %16s %20s%n",
+            "layout", "heap (MB)", "bytes/entry", "full scan (ms)", "last quarter (ms)");
+        System.out.printf("%-10s %10.1f %12.1f %16.1f %20.1f%n", "messages",
+            messageBytes / 1e6, (double) messageBytes / entries, fullScan[0] / 1e6, recentScan[0] / 1e6);
+        System.out.printf("%-10s %10.1f %12.1f %16.1f %20.1f%n", "columnar",
+            columnBytes / 1e6, (double) columnBytes / entries, fullScan[1] / 1e6, recentScan[1] / 1e6);
+        Reference.reachabilityFence(messages);
+        Reference.reachabilityFence(store);
+    }
+
+    // Returns the best message and columnar scan times over [from, to), after checking they agree.
+    private static long[] scan(List<List<UsageEntry>> messages, UsageStore store, long from, long to) {
+        double messageSum = 0;
+        double columnSum = 0;
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int scan = 0; scan < SCANS; scan++) {
+            long begin = System.nanoTime();
+            messageSum = scanMessages(messages, from, to);
+            best[0] = Math.min(best[0], System.nanoTime() - begin);
+
+            begin = System.nanoTime();
+            columnSum = scanColumns(store.snapshot().chunks(), from, to);
+            best[1] = Math.min(best[1], System.nanoTime() - begin);
+        }
+        if (Math.abs(messageSum - columnSum) > 1e-6 * Math.abs(messageSum)) {
+            throw new IllegalStateException("Scans disagree: " + messageSum + " vs " + columnSum);
+        }
+        return best;
+    }
+
+    private static List<List<UsageEntry>> buildMessages(int entries) {
+        List<List<UsageEntry>> chunks = new ArrayList<>();
+        List<UsageEntry> chunk = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            chunk.add(UsageEntry.newBuilder()
+                .setDeviceType(new String(DEVICE_TYPES[i % DEVICE_TYPES.length]))
+                .setDurationHours(0.25f + i % 8)
+                .setPowerRatingKw(0.5f + i % 5)
+                .setTimestamp(Long.toString(START + i * 1000L))
+                .build());
+            if (chunk.size() == CHUNK_ENTRIES) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    private static UsageStore buildStore(int entries) {
+        UsageStore store = new UsageStore();
+        UsageStore.Writer writer = store.newWriter();
+        for (int i = 0; i < entries; i++) {
+            writer.append(DEVICE_TYPES[i % DEVICE_TYPES.length], START + i * 1000L, 0.25f + i % 8, 0.5f + i % 5);
+        }
+        writer.close();
+        return store;
+    }
+
+    private static double scanMessages(List<List<UsageEntry>> chunks, long from, long to) {
+        double kwh = 0;
+        for (List<UsageEntry> chunk : chunks) {
+            for (UsageEntry entry : chunk) {
+                long timestamp = Long.parseLong(entry.getTimestamp());
+                if (timestamp >= from && timestamp < to) {
+                    kwh += entry.getDurationHours() * entry.getPowerRatingKw();
+                }
+            }
+        }
+        return kwh;
+    }
+
+    private static double scanColumns(List<UsageStore.ColumnChunk> chunks, long from, long to) {
+        double kwh = 0;
+        for (UsageStore.ColumnChunk chunk : chunks) {
+            if (chunk.maxTimestamp < from || chunk.minTimestamp >= to) {
+                continue;
+            }
+            for (int i = 0; i < chunk.size; i++) {
+                if (chunk.timestamps[i] >= from && chunk.timestamps[i] < to) {
+                    kwh += chunk.durationHours[i] * chunk.powerKw[i];
+                }
+            }
+        }
+        return kwh;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,401 @@
+package climate.emissions;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Append-only usage history. Each ingest stream fills its own {@link Writer}
+ * buffer and publishes it as an immutable chunk with a single CAS, so streams
+ * never contend on shared lists and readers always see whole chunks.
+ * Entries left in a buffer by a stream that has gone quiet are published by
+ * {@link #flushIdle}, so they reach readers within about a publish interval.
+ * Such small chunks are merged into the newest chunk while it still has room
+ * for a batch, and into whole batches again when persisted, so quiet streams
+ * do not leave behind a chunk's overhead for every few entries.
+ *
+ * <p>Chunks are columnar: device types are dictionary-encoded to int codes and
+ * the remaining fields are kept as primitive arrays, about 20 bytes per entry.
+ *
+ * <p>Chunks are persisted at most once: {@link #unpersisted} hands out those
+ * not yet in a segment and {@link #markPersisted} retires them, so segment
+ * files never overlap and are never rewritten.
+ */
+public class UsageStore {
+    private static final int FORMAT_VERSION = 1;
+    private static final int PUBLISH_BATCH = 256;
+    private static final long PUBLISH_INTERVAL_MILLIS = 1000;
+
+    // Claims on a chunk, so one is never both merged away and handed out to be persisted.
+    private static final int OPEN = 0;
+    private static final int MERGED = 1;
+    private static final int HANDED_OUT = 2;
+
+    private final AtomicReference<Node> head = new AtomicReference<>();
+    private final Map<String, Integer> deviceCodes = new ConcurrentHashMap<>();
+    private final Set<Writer> writers = ConcurrentHashMap.newKeySet();
+    private volatile String[] deviceTypes = new String[0];
+    // This node and everything older is persisted, so unpersisted() stops here.
+    private volatile Node persistedThrough;
+
+    public static final class ColumnChunk {
+        final int size;
+        final int[] deviceCodes;
+        final long[] timestamps;
+        final float[] durationHours;
+        final float[] powerKw;
+        final long minTimestamp;
+        final long maxTimestamp;
+        final AtomicInteger claim = new AtomicInteger(OPEN);
+        volatile boolean persisted;
+
+        ColumnChunk(int size, int[] deviceCodes, long[] timestamps, float[] durationHours, float[] powerKw) {
+            this.size = size;
+            this.deviceCodes = deviceCodes;
+            this.timestamps = timestamps;
+            this.durationHours = durationHours;
+            this.powerKw = powerKw;
+
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                min = Math.min(min, timestamps[i]);
+                max = Math.max(max, timestamps[i]);
+            }
+            this.minTimestamp = min;
+            this.maxTimestamp = max;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        ColumnChunk plus(ColumnChunk other) {
+            int total = size + other.size;
+            int[] codes = Arrays.copyOf(deviceCodes, total);
+            long[] times = Arrays.copyOf(timestamps, total);
+            float[] durations = Arrays.copyOf(durationHours, total);
+            float[] powers = Arrays.copyOf(powerKw, total);
+            System.arraycopy(other.deviceCodes, 0, codes, size, other.size);
+            System.arraycopy(other.timestamps, 0, times, size, other.size);
+            System.arraycopy(other.durationHours, 0, durations, size, other.size);
+            System.arraycopy(other.powerKw, 0, powers, size, other.size);
+            return new ColumnChunk(total, codes, times, durations, powers);
+        }
+    }
+
+    private static final class Node {
+        final ColumnChunk chunk;
+        final Node next;
+        final long totalEntries;
+
+        Node(ColumnChunk chunk, Node next) {
+            this.chunk = chunk;
+            this.next = next;
+            this.totalEntries = chunk.size + (next == null ? 0 : next.totalEntries);
+        }
+    }
+
+    /** Immutable view of every chunk published before it was taken. */
+    public class Snapshot {
+        private final Node head;
+
+        Snapshot(Node head) {
+            this.head = head;
+        }
+
+        public long size() {
+            return head == null ? 0 : head.totalEntries;
+        }
+
+        public List<ColumnChunk> chunks() {
+            List<ColumnChunk> chunks = new ArrayList<>();
+            for (Node node = head; node != null; node = node.next) {
+                chunks.add(node.chunk);
+            }
+            return chunks;
+        }
+
+        public String deviceType(int code) {
+            return UsageStore.this.deviceType(code);
+        }
+
+        // Read after the chunks, so it covers every code they contain.
+        public int deviceTypeCount() {
+            return deviceTypes.length;
+        }
+    }
+
+    /**
+     * Per-stream buffer. Each stream owns its own; the lock is only ever
+     * contended by {@link #flushIdle} and {@link #flushAll}, so appends stay
+     * uncontended.
+     */
+    public class Writer {
+        private int size = 0;
+        private int[] codes = new int[16];
+        private long[] timestamps = new long[16];
+        private float[] durations = new float[16];
+        private float[] powers = new float[16];
+        private long lastPublish = System.currentTimeMillis();
+
+        public synchronized void append(String deviceType, long timestamp, float durationHours, float powerKw) {
+            if (size == codes.length) {
+                int capacity = Math.min(size * 2, PUBLISH_BATCH);
+                codes = Arrays.copyOf(codes, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                powers = Arrays.copyOf(powers, capacity);
+            }
+            codes[size] = encode(deviceType);
+            timestamps[size] = timestamp;
+            durations[size] = durationHours;
+            powers[size] = powerKw;
+            size++;
+
+            if (size >= PUBLISH_BATCH || System.currentTimeMillis() - lastPublish >= PUBLISH_INTERVAL_MILLIS) {
+                flush();
+            }
+        }
+
+        public synchronized void flush() {
+            if (size > 0) {
+                publish(new ColumnChunk(size,
+                    Arrays.copyOf(codes, size), Arrays.copyOf(timestamps, size),
+                    Arrays.copyOf(durations, size), Arrays.copyOf(powers, size)));
+                size = 0;
+            }
+            lastPublish = System.currentTimeMillis();
+        }
+
+        /** Publishes what is buffered and stops {@link #flushIdle} tracking the writer. */
+        public void close() {
+            flush();
+            writers.remove(this);
+        }
+
+        synchronized void flushIfIdle(long now) {
+            if (size > 0 && now - lastPublish >= PUBLISH_INTERVAL_MILLIS) {
+                flush();
+            }
+        }
+    }
+
+    /** A new buffer, tracked for {@link #flushIdle} until it is closed. */
+    public Writer newWriter() {
+        Writer writer = new Writer();
+        writers.add(writer);
+        return writer;
+    }
+
+    /** Publishes entries that have waited a publish interval in writers whose streams went quiet. */
+    public void flushIdle() {
+        long now = System.currentTimeMillis();
+        for (Writer writer : writers) {
+            writer.flushIfIdle(now);
+        }
+    }
+
+    /** Publishes whatever every tracked writer has buffered, however recently it was appended. */
+    public void flushAll() {
+        for (Writer writer : writers) {
+            writer.flush();
+        }
+    }
+
+    /** Publishes columns built elsewhere, such as by a bulk import. The arrays are taken over, not copied. */
+    public void appendColumns(int size, int[] codes, long[] timestamps, float[] durationHours, float[] powerKw) {
+        publish(new ColumnChunk(size, codes, timestamps, durationHours, powerKw));
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(head.get());
+    }
+
+    /**
+     * Every chunk published before the call and not yet in any segment, oldest
+     * first. Called by one persister at a time.
+     */
+    public List<ColumnChunk> unpersisted() {
+        Node boundary = persistedThrough;
+        List<ColumnChunk> chunks = new ArrayList<>();
+        // A chunk being merged is replaced or reopened within one CAS, so walk again from the new head.
+        walk:
+        while (true) {
+            chunks.clear();
+            for (Node node = head.get(); node != null && node != boundary; node = node.next) {
+                ColumnChunk chunk = node.chunk;
+                if (chunk.persisted) {
+                    continue;
+                }
+                if (chunk.claim.get() != HANDED_OUT && !chunk.claim.compareAndSet(OPEN, HANDED_OUT)) {
+                    Thread.yield();
+                    continue walk;
+                }
+                chunks.add(chunk);
+            }
+            break;
+        }
+        Collections.reverse(chunks);
+        return chunks;
+    }
+
+    /** Records that {@code chunks} are stored durably, so they are not handed out again. */
+    public void markPersisted(List<ColumnChunk> chunks) {
+        chunks.forEach(chunk -> chunk.persisted = true);
+        Node boundary = persistedThrough;
+        Node newest = head.get();
+        Node through = newest;
+        for (Node node = newest; node != null && node != boundary; node = node.next) {
+            if (!node.chunk.persisted) {
+                through = node.next;
+            }
+        }
+        persistedThrough = through;
+    }
+
+    public int encode(String deviceType) {
+        Integer code = deviceCodes.get(deviceType);
+        return code != null ? code : register(deviceType);
+    }
+
+    public String deviceType(int code) {
+        return deviceTypes[code];
+    }
+
+    private synchronized int register(String deviceType) {
+        Integer code = deviceCodes.get(deviceType);
+        if (code != null) {
+            return code;
+        }
+        String[] grown = Arrays.copyOf(deviceTypes, deviceTypes.length + 1);
+        grown[deviceTypes.length] = deviceType;
+        deviceTypes = grown;
+        deviceCodes.put(deviceType, grown.length - 1);
+        return grown.length - 1;
+    }
+
+    /*
+     * A chunk that fits into the newest one alongside it replaces that one
+     * merged, claiming it first so the persister cannot hand it out meanwhile.
+     * Snapshots already taken keep the replaced node, so they never see an
+     * entry twice or a chunk change.
+     */
+    private void publish(ColumnChunk chunk) {
+        while (true) {
+            Node current = head.get();
+            if (current != null && current.chunk.size + chunk.size <= PUBLISH_BATCH
+                && current.chunk.claim.compareAndSet(OPEN, MERGED)) {
+                if (head.compareAndSet(current, new Node(current.chunk.plus(chunk), current.next))) {
+                    return;
+                }
+                current.chunk.claim.set(OPEN);
+            } else if (head.compareAndSet(current, new Node(chunk, current))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the given chunks and the current dictionary as a self-contained
+     * segment. Consecutive chunks are written as one until it holds a publish
+     * batch, so the segment reads back as whole batches.
+     */
+    public void writeTo(DataOutputStream out, List<ColumnChunk> chunks) throws IOException {
+        String[] dictionary = deviceTypes;
+
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(dictionary.length);
+        for (String deviceType : dictionary) {
+            out.writeUTF(deviceType);
+        }
+        List<Integer> runEnds = new ArrayList<>();
+        int runSize = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            runSize += chunks.get(c).size;
+            if (runSize >= PUBLISH_BATCH || c == chunks.size() - 1) {
+                runEnds.add(c + 1);
+                runSize = 0;
+            }
+        }
+        out.writeInt(runEnds.size());
+        int from = 0;
+        for (int end : runEnds) {
+            int size = 0;
+            for (int c = from; c < end; c++) {
+                size += chunks.get(c).size;
+            }
+            out.writeInt(size);
+            for (int c = from; c < end; c++) {
+                ColumnChunk chunk = chunks.get(c);
+                for (int i = 0; i < chunk.size; i++) {
+                    out.writeInt(chunk.deviceCodes[i]);
+                    out.writeLong(chunk.timestamps[i]);
+                    out.writeFloat(chunk.durationHours[i]);
+                    out.writeFloat(chunk.powerKw[i]);
+                }
+            }
+            from = end;
+        }
+    }
+
+    /**
+     * Reads one segment and publishes its chunks once all of them have been
+     * read. Safe to call concurrently. {@code persisted} says whether the chunks
+     * are already in a segment, or still need to be written to one.
+     */
+    public List<ColumnChunk> readFrom(DataInputStream in, boolean persisted) throws IOException {
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported usage store format " + version);
+        }
+        int[] remap = new int[checkCount(in.readInt(), "device types")];
+        for (int i = 0; i < remap.length; i++) {
+            remap[i] = encode(in.readUTF());
+        }
+        int chunkCount = checkCount(in.readInt(), "chunks");
+        List<ColumnChunk> chunks = new ArrayList<>(chunkCount);
+        for (int c = 0; c < chunkCount; c++) {
+            int size = checkCount(in.readInt(), "entries");
+            int[] codes = new int[size];
+            long[] timestamps = new long[size];
+            float[] durations = new float[size];
+            float[] powers = new float[size];
+            for (int i = 0; i < size; i++) {
+                int code = in.readInt();
+                if (code < 0 || code >= remap.length) {
+                    throw new IOException("Corrupt usage segment: device type " + code + " of " + remap.length);
+                }
+                codes[i] = remap[code];
+                timestamps[i] = in.readLong();
+                durations[i] = in.readFloat();
+                powers[i] = in.readFloat();
+            }
+            ColumnChunk chunk = new ColumnChunk(size, codes, timestamps, durations, powers);
+            chunk.persisted = persisted;
+            if (persisted) {
+                chunk.claim.set(HANDED_OUT);  // already in a segment, so never merged with new entries
+            }
+            chunks.add(chunk);
+        }
+        chunks.forEach(this::publish);
+        return chunks;
+    }
+
+    // Bad counts would otherwise surface as runtime exceptions rather than a segment that failed to load.
+    private static int checkCount(int count, String what) throws IOException {
+        if (count < 0) {
+            throw new IOException("Corrupt usage segment: " + count + " " + what);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,69 @@
+package climate.emissions;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Running totals for one usage stream. Keeps only what the summary needs, so
+ * memory does not grow with the number of entries in the stream.
+ */
+public class UsageSummaryAggregator {
+    private static final int MAX_DEVICE_IDS = 64;
+
+    private final Set<String> deviceIds = new LinkedHashSet<>();
+    private float totalCO2 = 0;
+    private long entryCount = 0;
+    private String worstDeviceType;
+    private float worstDeviceKwh;
+    private boolean usesElectricity = false;
+
+    public void add(String deviceType, String energySource, float kwh, float co2) {
+        totalCO2 += co2;
+        // Ties keep the earliest entry, as Stream.max did over the buffered entries.
+        if (entryCount == 0 || Float.compare(kwh, worstDeviceKwh) > 0) {
+            worstDeviceType = deviceType;
+            worstDeviceKwh = kwh;
+        }
+        entryCount++;
+        if (energySource.equals("ELECTRICITY")) {
+            usesElectricity = true;
+        }
+    }
+
+    /** Remembers a device the stream reported for, up to the first {@value #MAX_DEVICE_IDS}. */
+    public void addDeviceId(String deviceId) {
+        if (deviceIds.size() < MAX_DEVICE_IDS) {
+            deviceIds.add(deviceId);
+        }
+    }
+
+    /** The stream's own devices, so suggestions never name anyone else's. */
+    public Set<String> getDeviceIds() {
+        return Collections.unmodifiableSet(deviceIds);
+    }
+
+    public float getTotalCO2() {
+        return totalCO2;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public boolean hasWorstDevice() {
+        return entryCount > 0;
+    }
+
+    public String getWorstDeviceType() {
+        return worstDeviceType;
+    }
+
+    public float getWorstDeviceKwh() {
+        return worstDeviceKwh;
+    }
+
+    public boolean usesElectricity() {
+        return usesElectricity;
+    }
+}
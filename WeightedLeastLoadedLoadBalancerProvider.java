@@ -0,0 +1,209 @@
+package climate.discovery;
+
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load balancing policy {@value #POLICY_NAME}. Each call goes to the cheaper of
+ * two randomly chosen ready instances, costed from the {@link LoadReport} the
+ * instance last published plus the calls this client has in flight on it. The
+ * local count covers the seconds between reports, so a burst does not all land
+ * on whichever instance looked idle last time it published.
+ */
+public class WeightedLeastLoadedLoadBalancerProvider extends LoadBalancerProvider {
+    public static final String POLICY_NAME = "weighted_least_loaded";
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public int getPriority() {
+        return 5;
+    }
+
+    @Override
+    public String getPolicyName() {
+        return POLICY_NAME;
+    }
+
+    @Override
+    public LoadBalancer newLoadBalancer(LoadBalancer.Helper helper) {
+        return new WeightedLeastLoadedLoadBalancer(helper);
+    }
+
+    private static class Backend {
+        final LoadBalancer.Subchannel subchannel;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile LoadReport report;
+        ConnectivityState state = ConnectivityState.IDLE;
+
+        Backend(LoadBalancer.Subchannel subchannel) {
+            this.subchannel = subchannel;
+        }
+
+        double cost() {
+            LoadReport current = report;
+            // Instances that publish nothing are costed on local in-flight calls alone.
+            return current != null ? current.cost(inFlight.get()) : 1 + inFlight.get();
+        }
+
+        final ClientStreamTracer.Factory tracerFactory = new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+                inFlight.incrementAndGet();
+                return new ClientStreamTracer() {
+                    @Override
+                    public void streamClosed(Status status) {
+                        inFlight.decrementAndGet();
+                    }
+                };
+            }
+        };
+    }
+
+    static class WeightedLeastLoadedLoadBalancer extends LoadBalancer {
+        private final Helper helper;
+        private final Map<List<SocketAddress>, Backend> backends = new HashMap<>();
+        private Status lastError = Status.UNAVAILABLE.withDescription("No instances resolved yet");
+
+        WeightedLeastLoadedLoadBalancer(Helper helper) {
+            this.helper = helper;
+        }
+
+        @Override
+        public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
+            Set<List<SocketAddress>> live = new HashSet<>();
+            for (EquivalentAddressGroup group : resolvedAddresses.getAddresses()) {
+                List<SocketAddress> key = group.getAddresses();
+                live.add(key);
+                Backend backend = backends.get(key);
+                if (backend == null) {
+                    Subchannel subchannel = helper.createSubchannel(CreateSubchannelArgs.newBuilder()
+                        .setAddresses(group)
+                        .build());
+                    Backend created = new Backend(subchannel);
+                    backends.put(key, created);
+                    subchannel.start(state -> onStateChange(created, state));
+                    subchannel.requestConnection();
+                    backend = created;
+                }
+                backend.report = group.getAttributes().get(LoadReport.ATTRIBUTE);
+            }
+
+            backends.entrySet().removeIf(entry -> {
+                if (live.contains(entry.getKey())) {
+                    return false;
+                }
+                entry.getValue().subchannel.shutdown();
+                return true;
+            });
+            updateBalancingState();
+        }
+
+        @Override
+        public void handleNameResolutionError(Status error) {
+            lastError = error;
+            if (backends.isEmpty()) {
+                helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(error));
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            for (Backend backend : backends.values()) {
+                backend.subchannel.shutdown();
+            }
+            backends.clear();
+        }
+
+        private void onStateChange(Backend backend, ConnectivityStateInfo stateInfo) {
+            if (backends.get(backend.subchannel.getAddresses().getAddresses()) != backend) {
+                return;  // already removed
+            }
+            backend.state = stateInfo.getState();
+            if (backend.state == ConnectivityState.TRANSIENT_FAILURE) {
+                lastError = stateInfo.getStatus();
+            }
+            if (backend.state == ConnectivityState.IDLE) {
+                backend.subchannel.requestConnection();
+            }
+            updateBalancingState();
+        }
+
+        private void updateBalancingState() {
+            List<Backend> ready = new ArrayList<>();
+            boolean connecting = false;
+            for (Backend backend : backends.values()) {
+                if (backend.state == ConnectivityState.READY) {
+                    ready.add(backend);
+                } else if (backend.state != ConnectivityState.TRANSIENT_FAILURE) {
+                    connecting = true;
+                }
+            }
+            if (!ready.isEmpty()) {
+                helper.updateBalancingState(ConnectivityState.READY, new LeastLoadedPicker(ready));
+            } else if (connecting) {
+                helper.updateBalancingState(ConnectivityState.CONNECTING, new ErrorPicker(null));
+            } else {
+                helper.updateBalancingState(ConnectivityState.TRANSIENT_FAILURE, new ErrorPicker(lastError));
+            }
+        }
+    }
+
+    private static class LeastLoadedPicker extends LoadBalancer.SubchannelPicker {
+        private final List<Backend> ready;
+
+        LeastLoadedPicker(List<Backend> ready) {
+            this.ready = Collections.unmodifiableList(ready);
+        }
+
+        @Override
+        public LoadBalancer.PickResult pickSubchannel(LoadBalancer.PickSubchannelArgs args) {
+            Backend chosen = ready.get(0);
+            if (ready.size() > 1) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(ready.size());
+                int second = random.nextInt(ready.size() - 1);
+                if (second >= first) {
+                    second++;
+                }
+                Backend a = ready.get(first);
+                Backend b = ready.get(second);
+                chosen = a.cost() <= b.cost() ? a : b;
+            }
+            return LoadBalancer.PickResult.withSubchannel(chosen.subchannel, chosen.tracerFactory);
+        }
+    }
+
+    /** Fails calls with {@code error}, or holds them until the next picker when it is null. */
+    private static class ErrorPicker extends LoadBalancer.SubchannelPicker {
+        private final Status error;
+
+        ErrorPicker(Status error) {
+            this.error = error;
+        }
+
+        @Override
+        public LoadBalancer.PickResult pickSubchannel(LoadBalancer.PickSubchannelArgs args) {
+            return error == null ? LoadBalancer.PickResult.withNoResult() : LoadBalancer.PickResult.withError(error);
+        }
+    }
+}